@@ -0,0 +1,68 @@
+package com.smike.pjr2iifconverter;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Loading the account ID map and looking up raw AccountIDs in it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AccountIdMapBenchmark {
+  @Param({"1000", "300000"})
+  public int rowCount;
+
+  private File directory;
+  private File csvFile;
+  private File cacheFile;
+  private AccountIdMap accountIdMap;
+  private String[] accountIds;
+  private int next;
+
+  @Setup
+  public void setUp() throws Exception {
+    directory = SyntheticCorpus.createTempDirectory();
+    csvFile = new SyntheticCorpus().writeAccountIdMap(new File(directory, "accid.csv"), rowCount);
+    accountIdMap = AccountIdMap.load(csvFile);
+    cacheFile = new File(csvFile.getPath() + ".cache");
+
+    // Mostly known accounts, as in real journals, with some unknown ones mixed in.
+    accountIds = new String[1024];
+    for (int i = 0; i < accountIds.length; i++) {
+      int index = i % 8 == 0 ? rowCount * 3 + i : (i * 7919) % rowCount;
+      accountIds[i] = " " + SyntheticCorpus.accountId(index) + " -" + (i % 9);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    SyntheticCorpus.deleteRecursively(directory);
+  }
+
+  @Benchmark
+  public String getAccountName() {
+    String accountId = accountIds[next++ & (accountIds.length - 1)];
+    return accountIdMap.get(accountId, 1, accountId.indexOf('-') - 1);
+  }
+
+  @Benchmark
+  public AccountIdMap parseAccountIdMap() throws Exception {
+    return AccountIdMap.parse(csvFile);
+  }
+
+  @Benchmark
+  public AccountIdMap readAccountIdMapCache() {
+    return AccountIdMap.readCache(cacheFile, csvFile.length(), csvFile.lastModified());
+  }
+}
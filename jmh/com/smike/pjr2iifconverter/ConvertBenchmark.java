@@ -0,0 +1,68 @@
+package com.smike.pjr2iifconverter;
+
+import java.io.File;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Converting a directory of PJR files end to end, from reading the files to writing the IIF.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ConvertBenchmark {
+  @Param({"1000"})
+  public int fileCount;
+
+  @Param({"DOM", "STAX"})
+  public ParserEngine parserEngine;
+
+  @Param({"1", "4"})
+  public int threadCount;
+
+  private File directory;
+  private List<File> pjrFiles;
+  private File accountIdMapFile;
+
+  @Setup
+  public void setUp() throws Exception {
+    directory = SyntheticCorpus.createTempDirectory();
+    SyntheticCorpus syntheticCorpus = new SyntheticCorpus();
+    pjrFiles = syntheticCorpus.writePjrFiles(directory, fileCount, 1000, 20);
+    accountIdMapFile = syntheticCorpus.writeAccountIdMap(new File(directory, "accid.csv"), 1000);
+  }
+
+  @TearDown
+  public void tearDown() {
+    SyntheticCorpus.deleteRecursively(directory);
+  }
+
+  @Benchmark
+  public int convert() throws Exception {
+    Pjr2IifConverter pjr2IifConverter = new Pjr2IifConverter(pjrFiles, accountIdMapFile);
+    pjr2IifConverter.setParserEngine(parserEngine);
+    pjr2IifConverter.setThreadCount(threadCount);
+    pjr2IifConverter.convert(new Writer() {
+      @Override
+      public void write(char[] chars, int offset, int length) {}
+
+      @Override
+      public void flush() {}
+
+      @Override
+      public void close() {}
+    }, false);
+    return pjr2IifConverter.getTransactionCount();
+  }
+}
@@ -0,0 +1,55 @@
+package com.smike.pjr2iifconverter;
+
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing the date and amount of a transaction and encoding it as an IIF record.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class IifWriterBenchmark {
+  private IifWriter iifWriter;
+  private TransactionData transactionData;
+
+  @Setup
+  public void setUp(final Blackhole blackhole) {
+    iifWriter = new IifWriter(new Writer() {
+      @Override
+      public void write(char[] chars, int offset, int length) {
+        blackhole.consume(chars);
+      }
+
+      @Override
+      public void flush() {}
+
+      @Override
+      public void close() {}
+    });
+    transactionData = new TransactionData(PjrFieldParser.parseReceiptDate("2021-06-14"),
+                                          "3401106140611321090",
+                                          PjrFieldParser.parseAmountCents("1234.56"),
+                                          "Customer 1234");
+  }
+
+  @Benchmark
+  public void write() throws Exception {
+    iifWriter.write(transactionData);
+  }
+
+  @Benchmark
+  public long parseFields() {
+    return PjrFieldParser.parseReceiptDate("2021-06-14") +
+        PjrFieldParser.parseAmountCents("1234.56");
+  }
+}
@@ -0,0 +1,59 @@
+package com.smike.pjr2iifconverter;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Reading and parsing a directory of PJR files on one thread, with each read mode. Large PJRs
+ * are big enough to be memory-mapped in NIO mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PjrFileReaderBenchmark {
+  @Param({"STREAM", "NIO"})
+  public ReadMode readMode;
+
+  @Param({"10", "5000"})
+  public int lineItemCount;
+
+  private File directory;
+  private List<File> pjrFiles;
+
+  @Setup
+  public void setUp() throws Exception {
+    directory = SyntheticCorpus.createTempDirectory();
+    int fileCount = lineItemCount > 100 ? 50 : 1000;
+    pjrFiles = new SyntheticCorpus().writePjrFiles(directory, fileCount, 100, lineItemCount);
+  }
+
+  @TearDown
+  public void tearDown() {
+    SyntheticCorpus.deleteRecursively(directory);
+  }
+
+  @Benchmark
+  public int read() throws Exception {
+    PjrFileReader pjrFileReader = new PjrFileReader(ParserEngine.STAX, 1);
+    pjrFileReader.setReadMode(readMode);
+    final int[] recordCount = new int[1];
+    pjrFileReader.read(pjrFiles, new PjrFileReader.Handler() {
+      @Override
+      public void handle(File file, String entryName, PjrRecord pjrRecord) {
+        recordCount[0]++;
+      }
+    });
+    return recordCount[0];
+  }
+}
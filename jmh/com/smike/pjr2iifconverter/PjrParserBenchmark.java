@@ -0,0 +1,44 @@
+package com.smike.pjr2iifconverter;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Extracting the fields from one in-memory PJR, with each engine.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PjrParserBenchmark {
+  @Param({"DOM", "STAX"})
+  public ParserEngine parserEngine;
+
+  // Small PJRs have a handful of line items, large ones thousands.
+  @Param({"10", "5000"})
+  public int lineItemCount;
+
+  private PjrParser pjrParser;
+  private byte[] pjr;
+
+  @Setup
+  public void setUp() throws Exception {
+    pjrParser = parserEngine.newParser();
+    pjr = new SyntheticCorpus().createPjr(1, 100, lineItemCount)
+        .getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Benchmark
+  public PjrRecord parse() throws Exception {
+    return pjrParser.parse(new ByteArrayInputStream(pjr), "benchmark.xml");
+  }
+}
@@ -0,0 +1,120 @@
+package com.smike.pjr2iifconverter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates PJR files and account ID maps that look like the real ones, for benchmarks.
+ */
+public class SyntheticCorpus {
+  private static final int FIRST_ACCOUNT_ID = 100000;
+
+  private Random random = new Random(42);
+
+  /**
+   * Returns a PJR document. Large documents have many line items before the net amount and
+   * account, the way long register journals do.
+   */
+  public String createPjr(int transactionId, int accountCount, int lineItemCount) {
+    StringBuilder pjr = new StringBuilder();
+    pjr.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<transaction>\n");
+    pjr.append("  <header>\n");
+    pjr.append(String.format("    <ReceiptDate>2021-%02d-%02d</ReceiptDate>\n",
+                             1 + random.nextInt(12), 1 + random.nextInt(28)));
+    pjr.append("    <TransactionID>").append(transactionId).append("</TransactionID>\n");
+    pjr.append("  </header>\n  <lines>\n");
+    for (int i = 0; i < lineItemCount; i++) {
+      pjr.append("    <Line><Item>ITEM").append(i).append("</Item><Quantity>1</Quantity>")
+          .append(String.format("<Price>%d.%02d</Price>", random.nextInt(100), random.nextInt(100)))
+          .append("</Line>\n");
+    }
+    pjr.append("  </lines>\n");
+    pjr.append(String.format("  <TransactionTotalNetAmount>%d.%02d</TransactionTotalNetAmount>\n",
+                             random.nextInt(1000) - 50, random.nextInt(100)));
+    pjr.append("  <Customer><AccountID>")
+        .append(FIRST_ACCOUNT_ID + random.nextInt(accountCount))
+        .append("-1</AccountID></Customer>\n");
+    pjr.append("</transaction>\n");
+    return pjr.toString();
+  }
+
+  /**
+   * Writes PJR files named like the registers' into the directory and returns them in order.
+   */
+  public List<File> writePjrFiles(File directory, int fileCount, int accountCount,
+      int lineItemCount) throws IOException {
+    List<File> files = new ArrayList<File>(fileCount);
+    for (int i = 0; i < fileCount; i++) {
+      File file = new File(directory, String.format("PJR%08d.xml", i));
+      Files.write(file.toPath(),
+                  createPjr(i, accountCount, lineItemCount).getBytes(StandardCharsets.UTF_8));
+      files.add(file);
+    }
+    return files;
+  }
+
+  /**
+   * Writes an account ID map with the given number of rows, some of which map several IDs.
+   */
+  public File writeAccountIdMap(File file, int rowCount) throws IOException {
+    Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8);
+    try {
+      for (int i = 0; i < rowCount; i++) {
+        if (i % 10 == 0) {
+          writer.write("\"" + (FIRST_ACCOUNT_ID + i) + ", " + (FIRST_ACCOUNT_ID + rowCount + i) +
+              "\",Customer " + i + "\n");
+        } else {
+          writer.write((FIRST_ACCOUNT_ID + i) + ",Customer " + i + "\n");
+        }
+      }
+    } finally {
+      writer.close();
+    }
+    return file;
+  }
+
+  /**
+   * Writes a sample batch for measuring and training startup: {@code <directory>/pjr} with the
+   * given number of PJR files, and {@code <directory>/accid.csv}.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1 || args.length > 2) {
+      System.err.println("Usage: SyntheticCorpus <directory> [PJR file count]");
+      System.exit(2);
+    }
+    File directory = new File(args[0]);
+    int fileCount = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+    File pjrDirectory = new File(directory, "pjr");
+    deleteRecursively(pjrDirectory);
+    pjrDirectory.mkdirs();
+    SyntheticCorpus syntheticCorpus = new SyntheticCorpus();
+    syntheticCorpus.writePjrFiles(pjrDirectory, fileCount, 1000, 20);
+    syntheticCorpus.writeAccountIdMap(new File(directory, "accid.csv"), 1000);
+  }
+
+  public static String accountId(int index) {
+    return Integer.toString(FIRST_ACCOUNT_ID + index);
+  }
+
+  public static File createTempDirectory() throws IOException {
+    File directory = Files.createTempDirectory("pjr2iif-benchmark").toFile();
+    directory.deleteOnExit();
+    return directory;
+  }
+
+  public static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -0,0 +1,332 @@
+package com.smike.pjr2iifconverter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.opencsv.CSVReader;
+import com.opencsv.exceptions.CsvValidationException;
+
+/**
+ * A read-only map from account IDs to account names, loaded from the account ID map CSV.
+ *
+ * All of the IDs are packed into one char array behind an open-addressing hash table, so the map
+ * stays small with hundreds of thousands of rows and lookups can be done on part of a string
+ * without creating a substring. Loaded maps are kept in memory and written to a cache file next
+ * to the CSV, and both are reused until the CSV's size or modification time changes.
+ */
+public class AccountIdMap {
+  private static Logger logger = Logger.getLogger(AccountIdMap.class.getName());
+
+  private static final String CACHE_SUFFIX = ".cache";
+  private static final int CACHE_MAGIC = 0x504a5241;
+  private static final int CACHE_VERSION = 1;
+
+  private static final Map<File, AccountIdMap> loadedMaps = new HashMap<File, AccountIdMap>();
+
+  // The size and modification time of the CSV this map was built from.
+  private long sourceLength;
+  private long sourceLastModified;
+
+  private char[] keyChars;
+  private int[] keyOffsets;
+  private int[] keyNameIndexes;
+  private String[] names;
+  // Indexes into keyOffsets, or -1 for an empty slot. The length is a power of two.
+  private int[] slots;
+
+  private AccountIdMap() {}
+
+  /**
+   * Returns the map for the CSV, reusing an earlier load or the cache file when the CSV hasn't
+   * changed since.
+   */
+  public static AccountIdMap load(File csvFile) throws IOException, CsvValidationException {
+    File key = csvFile.getAbsoluteFile();
+    long length = key.length();
+    long lastModified = key.lastModified();
+
+    synchronized (loadedMaps) {
+      AccountIdMap accountIdMap = loadedMaps.get(key);
+      if (accountIdMap == null || !accountIdMap.isCurrent(length, lastModified)) {
+        File cacheFile = new File(key.getPath() + CACHE_SUFFIX);
+        accountIdMap = readCache(cacheFile, length, lastModified);
+        if (accountIdMap == null) {
+          accountIdMap = parse(key);
+          accountIdMap.sourceLength = length;
+          accountIdMap.sourceLastModified = lastModified;
+          accountIdMap.writeCache(cacheFile);
+          logger.info("Loaded " + accountIdMap.size() + " account IDs from " + key + ".");
+        } else {
+          logger.info("Loaded " + accountIdMap.size() + " account IDs from " + cacheFile + ".");
+        }
+        loadedMaps.put(key, accountIdMap);
+      }
+      return accountIdMap;
+    }
+  }
+
+  public int size() {
+    return keyNameIndexes.length;
+  }
+
+  public String get(CharSequence accountId) {
+    return get(accountId, 0, accountId.length());
+  }
+
+  /**
+   * Looks up the ID made of the characters from start to end.
+   */
+  public String get(CharSequence accountId, int start, int end) {
+    int mask = slots.length - 1;
+    for (int slot = hash(accountId, start, end) & mask; ; slot = (slot + 1) & mask) {
+      int keyIndex = slots[slot];
+      if (keyIndex == -1) {
+        return null;
+      }
+      if (keyEquals(keyIndex, accountId, start, end)) {
+        return names[keyNameIndexes[keyIndex]];
+      }
+    }
+  }
+
+  private boolean isCurrent(long length, long lastModified) {
+    return sourceLength == length && sourceLastModified == lastModified;
+  }
+
+  private boolean keyEquals(int keyIndex, CharSequence accountId, int start, int end) {
+    int keyStart = keyOffsets[keyIndex];
+    if (keyOffsets[keyIndex + 1] - keyStart != end - start) {
+      return false;
+    }
+    for (int i = start; i < end; i++) {
+      if (keyChars[keyStart + i - start] != accountId.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int hash(CharSequence chars, int start, int end) {
+    int hash = 0;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + chars.charAt(i);
+    }
+    // Spread the bits so that sequential IDs don't cluster in the table.
+    return hash ^ (hash >>> 16) ^ (hash >>> 7);
+  }
+
+  static AccountIdMap parse(File file) throws IOException, CsvValidationException {
+    StringBuilder keyChars = new StringBuilder();
+    int[] keyOffsets = new int[1024];
+    int[] keyNameIndexes = new int[1024];
+    int keyCount = 0;
+    Map<String, Integer> nameIndexes = new HashMap<String, Integer>();
+
+    CSVReader csvReader = new CSVReader(new FileReader(file));
+    try {
+      String[] columns;
+      while ((columns = csvReader.readNext()) != null) {
+        if (columns.length != 2) {
+          throw new RuntimeException("Unable to parse account ID map file because a line was in " +
+              "an unexpected format: " + Arrays.toString(columns));
+        }
+        String customerIdString = columns[0];
+        String customerName = columns[1].trim();
+        Integer nameIndex = nameIndexes.get(customerName);
+        if (nameIndex == null) {
+          nameIndex = nameIndexes.size();
+          nameIndexes.put(customerName, nameIndex);
+        }
+
+        // Sometimes, multiple ids can be mapped to one name
+        for (String customerId : customerIdString.split(",")) {
+          if (keyCount + 1 >= keyOffsets.length) {
+            keyOffsets = Arrays.copyOf(keyOffsets, keyOffsets.length * 2);
+            keyNameIndexes = Arrays.copyOf(keyNameIndexes, keyNameIndexes.length * 2);
+          }
+          keyOffsets[keyCount] = keyChars.length();
+          keyNameIndexes[keyCount] = nameIndex;
+          keyChars.append(customerId.trim());
+          keyCount++;
+        }
+      }
+    } finally {
+      csvReader.close();
+    }
+    keyOffsets[keyCount] = keyChars.length();
+
+    AccountIdMap accountIdMap = new AccountIdMap();
+    accountIdMap.keyChars = new char[keyChars.length()];
+    keyChars.getChars(0, keyChars.length(), accountIdMap.keyChars, 0);
+    accountIdMap.keyOffsets = Arrays.copyOf(keyOffsets, keyCount + 1);
+    accountIdMap.keyNameIndexes = Arrays.copyOf(keyNameIndexes, keyCount);
+    accountIdMap.names = new String[nameIndexes.size()];
+    for (Map.Entry<String, Integer> entry : nameIndexes.entrySet()) {
+      accountIdMap.names[entry.getValue()] = entry.getKey();
+    }
+    accountIdMap.buildSlots();
+    return accountIdMap;
+  }
+
+  private void buildSlots() {
+    int slotCount = Integer.highestOneBit(Math.max(16, size() * 2 - 1)) << 1;
+    slots = new int[slotCount];
+    Arrays.fill(slots, -1);
+    int mask = slotCount - 1;
+    CharSequence keys = CharBuffer.wrap(keyChars);
+    for (int keyIndex = 0; keyIndex < size(); keyIndex++) {
+      int start = keyOffsets[keyIndex];
+      int end = keyOffsets[keyIndex + 1];
+      int slot = hash(keys, start, end) & mask;
+      while (slots[slot] != -1 && !keyEquals(slots[slot], keys, start, end)) {
+        slot = (slot + 1) & mask;
+      }
+      // Later rows replace earlier ones for the same ID.
+      slots[slot] = keyIndex;
+    }
+  }
+
+  static AccountIdMap readCache(File cacheFile, long length, long lastModified) {
+    if (!cacheFile.isFile()) {
+      return null;
+    }
+    // No count in the file can be larger than the file itself.
+    long maxCount = cacheFile.length();
+    try {
+      DataInputStream inputStream =
+          new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+      try {
+        if (inputStream.readInt() != CACHE_MAGIC || inputStream.readInt() != CACHE_VERSION ||
+            inputStream.readLong() != length || inputStream.readLong() != lastModified) {
+          return null;
+        }
+        AccountIdMap accountIdMap = new AccountIdMap();
+        accountIdMap.sourceLength = length;
+        accountIdMap.sourceLastModified = lastModified;
+        accountIdMap.names = new String[readCount(inputStream, maxCount)];
+        for (int i = 0; i < accountIdMap.names.length; i++) {
+          accountIdMap.names[i] = inputStream.readUTF();
+        }
+        accountIdMap.keyChars = new char[readCount(inputStream, maxCount)];
+        for (int i = 0; i < accountIdMap.keyChars.length; i++) {
+          accountIdMap.keyChars[i] = inputStream.readChar();
+        }
+        accountIdMap.keyOffsets = readInts(inputStream, maxCount);
+        accountIdMap.keyNameIndexes = readInts(inputStream, maxCount);
+        accountIdMap.slots = readInts(inputStream, maxCount);
+        if (!accountIdMap.isValid()) {
+          logger.warning("Ignoring corrupt account ID map cache " + cacheFile + ".");
+          return null;
+        }
+        return accountIdMap;
+      } finally {
+        inputStream.close();
+      }
+    } catch (IOException e) {
+      logger.warning("Ignoring unreadable account ID map cache " + cacheFile + ": " + e);
+      return null;
+    }
+  }
+
+  // Checks that a map read from a cache can't index outside its arrays or probe forever.
+  private boolean isValid() {
+    if (keyOffsets.length != keyNameIndexes.length + 1 || keyOffsets[0] != 0 ||
+        keyOffsets[keyOffsets.length - 1] != keyChars.length) {
+      return false;
+    }
+    for (int keyIndex = 0; keyIndex < keyNameIndexes.length; keyIndex++) {
+      if (keyOffsets[keyIndex] > keyOffsets[keyIndex + 1] ||
+          keyNameIndexes[keyIndex] < 0 || keyNameIndexes[keyIndex] >= names.length) {
+        return false;
+      }
+    }
+    if (Integer.bitCount(slots.length) != 1) {
+      return false;
+    }
+    boolean hasEmptySlot = false;
+    for (int keyIndex : slots) {
+      if (keyIndex == -1) {
+        hasEmptySlot = true;
+      } else if (keyIndex < 0 || keyIndex >= keyNameIndexes.length) {
+        return false;
+      }
+    }
+    return hasEmptySlot;
+  }
+
+  private void writeCache(File cacheFile) {
+    File tempFile = new File(cacheFile.getPath() + ".tmp");
+    try {
+      DataOutputStream outputStream =
+          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      try {
+        outputStream.writeInt(CACHE_MAGIC);
+        outputStream.writeInt(CACHE_VERSION);
+        outputStream.writeLong(sourceLength);
+        outputStream.writeLong(sourceLastModified);
+        outputStream.writeInt(names.length);
+        for (String name : names) {
+          outputStream.writeUTF(name);
+        }
+        outputStream.writeInt(keyChars.length);
+        for (char c : keyChars) {
+          outputStream.writeChar(c);
+        }
+        writeInts(outputStream, keyOffsets);
+        writeInts(outputStream, keyNameIndexes);
+        writeInts(outputStream, slots);
+      } finally {
+        outputStream.close();
+      }
+      try {
+        Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    } catch (IOException e) {
+      // The cache only saves time, so carry on without it.
+      logger.log(Level.FINE, "Unable to write account ID map cache " + cacheFile, e);
+      tempFile.delete();
+    }
+  }
+
+  private static int readCount(DataInputStream inputStream, long maxCount) throws IOException {
+    int count = inputStream.readInt();
+    if (count < 0 || count > maxCount) {
+      throw new IOException("Invalid count " + count);
+    }
+    return count;
+  }
+
+  private static int[] readInts(DataInputStream inputStream, long maxCount) throws IOException {
+    int[] values = new int[readCount(inputStream, maxCount)];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = inputStream.readInt();
+    }
+    return values;
+  }
+
+  private static void writeInts(DataOutputStream outputStream, int[] values) throws IOException {
+    outputStream.writeInt(values.length);
+    for (int value : values) {
+      outputStream.writeInt(value);
+    }
+  }
+}
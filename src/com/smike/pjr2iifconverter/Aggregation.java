@@ -0,0 +1,25 @@
+package com.smike.pjr2iifconverter;
+
+/**
+ * The available ways of rolling transactions up into summary invoices.
+ */
+public enum Aggregation {
+  /** Writes one invoice per transaction. */
+  NONE,
+  /** Writes one invoice per account and receipt date. */
+  ACCOUNT_DAY,
+  /**
+   * Writes one invoice per account and receipt date for sales, and another for refunds and
+   * other negative transactions.
+   */
+  ACCOUNT_DAY_SIGN;
+
+  public static Aggregation getEnum(String name) {
+    for (Aggregation aggregation : Aggregation.values()) {
+      if (aggregation.name().equalsIgnoreCase(name)) {
+        return aggregation;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,290 @@
+package com.smike.pjr2iifconverter;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads the files in a {@code .zip}, {@code .tar.gz} or {@code .tgz} archive one after the other
+ * in a single pass, without extracting them.
+ */
+public abstract class ArchiveReader implements Closeable {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Returns whether the name is that of an archive this class can read.
+   */
+  public static boolean isArchive(String name) {
+    String lowerCaseName = name.toLowerCase(Locale.ROOT);
+    return lowerCaseName.endsWith(".zip") || lowerCaseName.endsWith(".tar.gz") ||
+        lowerCaseName.endsWith(".tgz");
+  }
+
+  public static ArchiveReader open(File file) throws IOException {
+    InputStream inputStream = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+    try {
+      if (file.getName().toLowerCase(Locale.ROOT).endsWith(".zip")) {
+        return new ZipReader(inputStream);
+      }
+      return new TarReader(new GZIPInputStream(inputStream, BUFFER_SIZE));
+    } catch (IOException e) {
+      inputStream.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Moves to the next regular file in the archive and returns its path within the archive, or
+   * returns null if there are no more.
+   */
+  public abstract String nextEntry() throws IOException;
+
+  /**
+   * Returns a stream over the current entry. It ends at the end of the entry, and doesn't need
+   * to be closed.
+   */
+  public abstract InputStream getInputStream();
+
+  /**
+   * Returns the last part of an entry's path.
+   */
+  public static String getFileName(String entryName) {
+    return entryName.substring(entryName.lastIndexOf('/') + 1);
+  }
+
+  private static class ZipReader extends ArchiveReader {
+    private ZipInputStream zipInputStream;
+    private InputStream entryInputStream;
+
+    public ZipReader(InputStream inputStream) {
+      zipInputStream = new ZipInputStream(inputStream, StandardCharsets.UTF_8);
+      // Keep parsers from closing the archive when they close what they've been given.
+      entryInputStream = new FilterInputStream(zipInputStream) {
+        @Override
+        public void close() {}
+      };
+    }
+
+    @Override
+    public String nextEntry() throws IOException {
+      ZipEntry zipEntry;
+      do {
+        zipEntry = zipInputStream.getNextEntry();
+      } while (zipEntry != null && zipEntry.isDirectory());
+      return zipEntry == null ? null : zipEntry.getName();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      return entryInputStream;
+    }
+
+    @Override
+    public void close() throws IOException {
+      zipInputStream.close();
+    }
+  }
+
+  /**
+   * Reads ustar and GNU tar archives, including GNU and PAX long names.
+   */
+  private static class TarReader extends ArchiveReader {
+    private static final int BLOCK_SIZE = 512;
+
+    private InputStream inputStream;
+    private byte[] header = new byte[BLOCK_SIZE];
+    // What's left of the current entry, and the padding after it.
+    private long entryRemaining;
+    private long paddingRemaining;
+
+    private InputStream entryInputStream = new InputStream() {
+      @Override
+      public int read() throws IOException {
+        if (entryRemaining == 0) {
+          return -1;
+        }
+        int b = inputStream.read();
+        if (b == -1) {
+          throw new EOFException("Tar entry is truncated");
+        }
+        entryRemaining--;
+        return b;
+      }
+
+      @Override
+      public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (entryRemaining == 0) {
+          return -1;
+        }
+        int count = inputStream.read(bytes, offset, (int) Math.min(length, entryRemaining));
+        if (count == -1) {
+          throw new EOFException("Tar entry is truncated");
+        }
+        entryRemaining -= count;
+        return count;
+      }
+    };
+
+    public TarReader(InputStream inputStream) {
+      this.inputStream = inputStream;
+    }
+
+    @Override
+    public String nextEntry() throws IOException {
+      String longName = null;
+      while (true) {
+        skipFully(entryRemaining + paddingRemaining);
+        entryRemaining = 0;
+        paddingRemaining = 0;
+
+        if (!readHeader()) {
+          return null;
+        }
+        long size = parseOctal(header, 124, 12);
+        entryRemaining = size;
+        paddingRemaining = (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE;
+
+        char type = (char) header[156];
+        if (type == 'L') {
+          // GNU long name: the data is the name of the next entry.
+          longName = trimNul(readEntryData());
+        } else if (type == 'x') {
+          String path = parsePaxPath(readEntryData());
+          if (path != null) {
+            longName = path;
+          }
+        } else if (type == '0' || type == '\0' || type == '7') {
+          return longName != null ? longName : getName();
+        } else {
+          // Directories, links and the like have no PJR data.
+          longName = null;
+        }
+      }
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      return entryInputStream;
+    }
+
+    @Override
+    public void close() throws IOException {
+      inputStream.close();
+    }
+
+    // Returns false at the end of the archive.
+    private boolean readHeader() throws IOException {
+      int offset = 0;
+      while (offset < BLOCK_SIZE) {
+        int count = inputStream.read(header, offset, BLOCK_SIZE - offset);
+        if (count == -1) {
+          if (offset == 0) {
+            return false;
+          }
+          throw new EOFException("Tar header is truncated");
+        }
+        offset += count;
+      }
+      for (byte b : header) {
+        if (b != 0) {
+          return true;
+        }
+      }
+      // An empty block marks the end.
+      return false;
+    }
+
+    private String getName() {
+      String name = new String(header, 0, nulIndex(header, 0, 100), StandardCharsets.UTF_8);
+      boolean ustar = header[257] == 'u' && header[258] == 's' && header[259] == 't' &&
+          header[260] == 'a' && header[261] == 'r';
+      if (ustar && header[345] != 0) {
+        String prefix =
+            new String(header, 345, nulIndex(header, 345, 155), StandardCharsets.UTF_8);
+        name = prefix + "/" + name;
+      }
+      return name;
+    }
+
+    private byte[] readEntryData() throws IOException {
+      if (entryRemaining > 1024 * 1024) {
+        throw new IOException("Tar extended header is too large: " + entryRemaining);
+      }
+      byte[] data = new byte[(int) entryRemaining];
+      int offset = 0;
+      while (offset < data.length) {
+        offset += entryInputStream.read(data, offset, data.length - offset);
+      }
+      return data;
+    }
+
+    private void skipFully(long count) throws IOException {
+      while (count > 0) {
+        long skipped = inputStream.skip(count);
+        if (skipped <= 0) {
+          if (inputStream.read() == -1) {
+            throw new EOFException("Tar archive is truncated");
+          }
+          skipped = 1;
+        }
+        count -= skipped;
+      }
+    }
+
+    // PAX records look like "<length> <key>=<value>\n".
+    private static String parsePaxPath(byte[] data) {
+      String records = new String(data, StandardCharsets.UTF_8);
+      String path = null;
+      for (String record : records.split("\n")) {
+        int indexOfSpace = record.indexOf(' ');
+        if (indexOfSpace != -1 && record.startsWith("path=", indexOfSpace + 1)) {
+          path = record.substring(indexOfSpace + 1 + "path=".length());
+        }
+      }
+      return path;
+    }
+
+    private static long parseOctal(byte[] bytes, int offset, int length) throws IOException {
+      if ((bytes[offset] & 0x80) != 0) {
+        // GNU base-256 encoding for sizes of 8 GB or more, which no PJR comes near.
+        throw new IOException("Tar entry is too large");
+      }
+      long value = 0;
+      for (int i = offset; i < offset + length; i++) {
+        byte b = bytes[i];
+        if (b >= '0' && b <= '7') {
+          value = value * 8 + (b - '0');
+        } else if (b != ' ' || value != 0) {
+          if (b == 0 || b == ' ') {
+            break;
+          }
+          throw new IOException("Invalid tar header");
+        }
+      }
+      return value;
+    }
+
+    private static int nulIndex(byte[] bytes, int offset, int length) {
+      for (int i = offset; i < offset + length; i++) {
+        if (bytes[i] == 0) {
+          return i - offset;
+        }
+      }
+      return length;
+    }
+
+    private static String trimNul(byte[] bytes) {
+      return new String(bytes, 0, nulIndex(bytes, 0, bytes.length), StandardCharsets.UTF_8);
+    }
+  }
+}
@@ -0,0 +1,176 @@
+package com.smike.pjr2iifconverter;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes a file under a temporary name in the same directory, and on {@link #commit()} syncs it
+ * to disk and renames it over the file in one step. If anything goes wrong before then, or the
+ * process dies, the file is left as it was rather than truncated. Temporary files left by a
+ * process that died can be cleared away with {@link #deleteStaleTempFiles(File)}.
+ */
+public class AtomicOutputFile implements Closeable {
+  private static Logger logger = Logger.getLogger(AtomicOutputFile.class.getName());
+
+  // Long enough that no running conversion goes that long without writing to its file.
+  private static final long STALE_TEMP_FILE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private File file;
+  private File tempFile;
+  private FileOutputStream outputStream;
+  private Writer writer;
+  private boolean finished;
+  private boolean closed;
+
+  public AtomicOutputFile(File file) throws IOException {
+    this.file = file;
+    File directory = file.getAbsoluteFile().getParentFile();
+    tempFile = File.createTempFile(file.getName() + ".", ".tmp", directory);
+    outputStream = new FileOutputStream(tempFile);
+    // The platform's default charset, the same as a FileWriter.
+    writer = new BufferedWriter(new OutputStreamWriter(outputStream));
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Returns a buffered writer over the temporary file. Closing it isn't needed.
+   */
+  public Writer getWriter() {
+    return writer;
+  }
+
+  /**
+   * Returns the unbuffered stream under {@link #getWriter()}, for binary output. Anything
+   * written through a wrapper around it has to be flushed before {@link #commit()}.
+   */
+  public OutputStream getOutputStream() {
+    return outputStream;
+  }
+
+  /**
+   * Flushes and syncs what has been written without moving it into place yet, so that several
+   * files can be written in full before any of them is committed. Nothing more can be written.
+   */
+  public void finish() throws IOException {
+    if (closed) {
+      throw new IOException(file + " was already closed.");
+    }
+    if (finished) {
+      return;
+    }
+    writer.flush();
+    outputStream.getFD().sync();
+    writer.close();
+    finished = true;
+  }
+
+  /**
+   * Flushes and syncs what has been written, then moves it into place. The file is complete on
+   * disk by the time this returns.
+   */
+  public void commit() throws IOException {
+    finish();
+    closed = true;
+    try {
+      moveIntoPlace(tempFile, file);
+    } finally {
+      tempFile.delete();
+    }
+    syncDirectory(file.getAbsoluteFile().getParentFile());
+  }
+
+  /**
+   * Throws away what has been written, unless it has been committed.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      writer.close();
+    } finally {
+      tempFile.delete();
+    }
+  }
+
+  /**
+   * Deletes the temporary files of earlier processes that ended before committing or closing
+   * the file, or any file named after it with something added, such as partitions. Temporary
+   * files that have been written to in the last hour are left alone, in case another process
+   * is still writing them.
+   */
+  public static void deleteStaleTempFiles(File file) {
+    File directory = file.getAbsoluteFile().getParentFile();
+    String fileName = file.getName();
+    int indexOfDot = fileName.lastIndexOf('.');
+    final String baseName = indexOfDot == -1 ? fileName : fileName.substring(0, indexOfDot);
+    File[] tempFiles = directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith(baseName) && name.endsWith(".tmp");
+      }
+    });
+    if (tempFiles == null) {
+      return;
+    }
+    long staleMillis = System.currentTimeMillis() - STALE_TEMP_FILE_MILLIS;
+    for (File tempFile : tempFiles) {
+      if (tempFile.lastModified() < staleMillis) {
+        if (tempFile.delete()) {
+          logger.info("Deleted stale temporary file " + tempFile);
+        } else {
+          logger.warning("Unable to delete stale temporary file " + tempFile);
+        }
+      }
+    }
+  }
+
+  /**
+   * Renames the source over the target, atomically where the file system allows it.
+   */
+  public static void moveIntoPlace(File source, File target) throws IOException {
+    try {
+      Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Makes a rename in the directory durable. Only some platforms can sync a directory, so this
+   * does what it can.
+   */
+  public static void syncDirectory(File directory) {
+    try {
+      FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+      try {
+        channel.force(true);
+      } finally {
+        channel.close();
+      }
+    } catch (IOException e) {
+      logger.log(Level.FINE, "Unable to sync " + directory, e);
+    }
+  }
+}
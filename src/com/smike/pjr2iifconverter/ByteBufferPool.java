@@ -0,0 +1,58 @@
+package com.smike.pjr2iifconverter;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Keeps a few byte buffers around for reuse, so reading many small files doesn't allocate a
+ * buffer for each one. Buffers only ever get bigger: one too small for a request is dropped and
+ * replaced with a larger one.
+ */
+public class ByteBufferPool {
+  private static final int MIN_CAPACITY = 8 * 1024;
+
+  private int maxPooledBuffers;
+  private boolean direct;
+  private Deque<ByteBuffer> buffers = new ArrayDeque<ByteBuffer>();
+
+  /**
+   * @param maxPooledBuffers how many released buffers are kept. Usually the number of threads
+   *     that use the pool.
+   * @param direct whether to allocate direct buffers, which channels can read into without
+   *     copying through a temporary buffer of their own.
+   */
+  public ByteBufferPool(int maxPooledBuffers, boolean direct) {
+    this.maxPooledBuffers = maxPooledBuffers;
+    this.direct = direct;
+  }
+
+  /**
+   * Returns a cleared buffer whose limit is the given capacity.
+   */
+  public ByteBuffer acquire(int capacity) {
+    ByteBuffer buffer;
+    synchronized (buffers) {
+      buffer = buffers.pollFirst();
+    }
+    if (buffer == null || buffer.capacity() < capacity) {
+      int newCapacity = Math.max(MIN_CAPACITY, capacity);
+      if (newCapacity <= 1 << 30) {
+        // Round up to a power of two so that files of similar sizes share buffers.
+        newCapacity = Integer.highestOneBit(newCapacity - 1) << 1;
+      }
+      buffer = direct ? ByteBuffer.allocateDirect(newCapacity) : ByteBuffer.allocate(newCapacity);
+    }
+    buffer.clear();
+    buffer.limit(capacity);
+    return buffer;
+  }
+
+  public void release(ByteBuffer buffer) {
+    synchronized (buffers) {
+      if (buffers.size() < maxPooledBuffers) {
+        buffers.addFirst(buffer);
+      }
+    }
+  }
+}
@@ -0,0 +1,942 @@
+package com.smike.pjr2iifconverter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+
+/**
+ * Runs conversions without a display, for scheduled and scripted use. This class must not touch
+ * any AWT or Swing classes, so that it starts quickly and works on headless servers.
+ *
+ * Settings are given as {@code --<settings key>=<value>} or {@code --<settings key> <value>},
+ * using the same keys as the config file, and override any settings loaded with
+ * {@code --config}. Boolean settings can be given as bare flags. Any other arguments are PJR
+ * files, directories of PJR files or globs, and replace the pjr_location setting.
+ */
+public class CommandLine {
+  private static Logger logger = Logger.getLogger(CommandLine.class.getName());
+
+  public static final int EXIT_OK = 0;
+  public static final int EXIT_CONVERSION_FAILED = 1;
+  public static final int EXIT_USAGE = 2;
+  public static final int EXIT_NO_INPUT = 3;
+
+  private static final String STDOUT = "-";
+
+  private static final Set<SettingsKey> BOOLEAN_SETTINGS =
+      EnumSet.of(SettingsKey.DELETE_PJRS_ON_CONVERT, SettingsKey.IGNORE_NEGATIVE_TRANSACTIONS,
+                 SettingsKey.METRICS_JMX, SettingsKey.MULTI_TRANSACTION,
+                 SettingsKey.PARTITION_BY_DATE, SettingsKey.SORT_OUTPUT,
+                 SettingsKey.WATCH_ROLLOVER);
+
+  private static final String USAGE =
+      "Usage: java -cp pjr2iif.jar com.smike.pjr2iifconverter.Pjr2IifConverter [options] " +
+          "[PJR file, directory or glob]...\n" +
+      "\n" +
+      "Inputs may also be .zip, .tar.gz or .tgz archives, whose PJR entries are converted\n" +
+      "without being extracted.\n" +
+      "\n" +
+      "Options:\n" +
+      "  --config <file>                      Load settings from a config file first.\n" +
+      "  --account_id_map_file <file>         CSV mapping account IDs to names. Required.\n" +
+      "  --iif_output_file <file>             Where to write the IIF, or - for stdout.\n" +
+      "                                       Required.\n" +
+      "  --pjr_location <file or directory>   Used when no inputs are given.\n" +
+      "  --ignore_negative_transactions       Leave out transactions with negative amounts.\n" +
+      "  --aggregation <none|account_day|account_day_sign>\n" +
+      "                                       Write one invoice per account and day, or per\n" +
+      "                                       account, day and sign, instead of one per\n" +
+      "                                       transaction. Defaults to none.\n" +
+      "  --delete_pjrs_on_convert             Delete the PJR files after a successful\n" +
+      "                                       conversion.\n" +
+      "  --archive_location <directory>       Move the PJR files there after a successful\n" +
+      "                                       conversion instead.\n" +
+      "  --journal_location <directory>       Remember converted files and TransactionIDs\n" +
+      "                                       there, and skip them on later runs.\n" +
+      "  --metrics_report_file <file>         Write counts and stage timings there as JSON\n" +
+      "                                       after each conversion.\n" +
+      "  --metrics_jmx                        Publish counts and stage timings through JMX.\n" +
+      "  --multi_transaction                  Read each PJR as a journal of many transactions,\n" +
+      "                                       streaming every <Transaction> element.\n" +
+      "  --transaction_tag <name>             The element holding each transaction in\n" +
+      "                                       journals. Implies --multi_transaction.\n" +
+      "  --sort_output                        Write transactions in order of receipt date and\n" +
+      "                                       TransactionID instead of the order they're read.\n" +
+      "  --sort_memory_mb <n>                 Memory for sorting, beyond which sorted runs are\n" +
+      "                                       spilled to temporary files. Defaults to 64.\n" +
+      "  --partition_transactions <n>         Split the output into numbered IIF parts of at\n" +
+      "                                       most n transactions each, listed in a manifest.\n" +
+      "  --partition_bytes <n>                Start a new part once one reaches n bytes.\n" +
+      "  --partition_by_date                  Start a new part whenever the receipt date\n" +
+      "                                       changes.\n" +
+      "  --parser_engine <dom|stax>           How PJR files are parsed. Defaults to dom.\n" +
+      "  --read_mode <stream|nio>             How PJR files are read. nio reads each file whole\n" +
+      "                                       into a pooled buffer. Defaults to stream.\n" +
+      "  --record_cache_file <file>           Keep the fields read from each PJR there, and\n" +
+      "                                       reuse them while the PJR is unchanged.\n" +
+      "  --thread_count <n>                   Files to parse concurrently. Defaults to the\n" +
+      "                                       number of processors.\n" +
+      "  --shard_count <n>                    Convert only one of n shards of the inputs,\n" +
+      "                                       picked by a hash of each file name, into a sorted\n" +
+      "                                       run next to the IIF output file. Give every shard\n" +
+      "                                       the same inputs.\n" +
+      "  --shard_index <k>                    The shard to convert, from 0 to n - 1.\n" +
+      "  --merge_shards                       Merge the runs of all n shards into the IIF\n" +
+      "                                       output file, ordered by receipt date and\n" +
+      "                                       transaction ID, and delete them. PJR files are\n" +
+      "                                       deleted or archived by the merge, not the shards.\n" +
+      "  --serve                              Keep running and convert PJRs, .zip or .tar.gz\n" +
+      "                                       uploads POSTed to\n" +
+      "                                       http://localhost:<port>/convert. ?output=append\n" +
+      "                                       appends to the IIF output file instead of sending\n" +
+      "                                       the IIF back. GET /status reports request counts\n" +
+      "                                       and latencies.\n" +
+      "  --server_port <n>                    The port to serve on. Defaults to 8426.\n" +
+      "  --server_max_concurrent_requests <n> Conversions to run at once when serving. Defaults\n" +
+      "                                       to four per processor.\n" +
+      "  --server_max_upload_mb <n>           The largest upload to accept when serving.\n" +
+      "                                       Defaults to 256.\n" +
+      "  --server_max_decompressed_mb <n>     The most an uploaded archive's files may add up\n" +
+      "                                       to once decompressed. Defaults to 1024.\n" +
+      "  --server_rollover_mb <n>             Append to a new, timestamped IIF file each time\n" +
+      "                                       the last one reaches n MB when serving, instead\n" +
+      "                                       of to the IIF output file itself.\n" +
+      "  --watch                              Keep running and convert PJR files as they arrive\n" +
+      "                                       in the one input directory.\n" +
+      "  --watch_interval_seconds <n>         How often arrivals are converted when watching.\n" +
+      "                                       Defaults to 5.\n" +
+      "  --watch_rollover                     Write each batch to a new, timestamped IIF file\n" +
+      "                                       instead of appending when watching.\n" +
+      "  --help                               Show this message.\n" +
+      "\n" +
+      "Exit codes: 0 on success, 1 if the conversion failed, 2 for bad arguments and 3 if no\n" +
+      "PJR files were found.\n";
+
+  private PrintStream out = System.out;
+  private PrintStream err = System.err;
+
+  private Properties properties = new Properties();
+  private List<String> inputs = new ArrayList<String>();
+  private boolean watch;
+  private boolean serve;
+  private boolean mergeShards;
+  private ProcessedJournal journal;
+  private PjrRecordCache recordCache;
+  private ConversionMetrics metrics;
+
+  public int run(String[] args) {
+    try {
+      if (!parseArgs(args)) {
+        out.print(USAGE);
+        return EXIT_OK;
+      }
+    } catch (IllegalArgumentException e) {
+      err.println(e.getMessage());
+      err.print(USAGE);
+      return EXIT_USAGE;
+    } catch (IOException e) {
+      err.println("Unable to load config: " + e);
+      return EXIT_USAGE;
+    }
+
+    String accountIdMapLocation = getSetting(SettingsKey.ACCOUNT_ID_MAP_FILE);
+    String iifFileLocation = getSetting(SettingsKey.IIF_OUTPUT_FILE);
+    if (accountIdMapLocation == null || iifFileLocation == null) {
+      err.println("Both " + SettingsKey.ACCOUNT_ID_MAP_FILE + " and " +
+          SettingsKey.IIF_OUTPUT_FILE + " must be set.");
+      err.print(USAGE);
+      return EXIT_USAGE;
+    }
+    if (watch && serve) {
+      err.println("Only one of --watch and --serve can be given.");
+      return EXIT_USAGE;
+    }
+    if ((watch || serve) && (mergeShards || getSetting(SettingsKey.SHARD_COUNT) != null)) {
+      err.println("--watch and --serve can't be used with " + SettingsKey.SHARD_COUNT +
+          " or --merge_shards.");
+      return EXIT_USAGE;
+    }
+    if (!STDOUT.equals(iifFileLocation)) {
+      // Left by earlier runs that died before they could clean up.
+      AtomicOutputFile.deleteStaleTempFiles(new File(iifFileLocation));
+    }
+
+    String metricsReportLocation = getSetting(SettingsKey.METRICS_REPORT_FILE);
+    if (metricsReportLocation != null || getBooleanSetting(SettingsKey.METRICS_JMX)) {
+      metrics = new ConversionMetrics();
+      if (metricsReportLocation != null) {
+        metrics.setReportFile(new File(metricsReportLocation));
+      }
+      if (getBooleanSetting(SettingsKey.METRICS_JMX)) {
+        try {
+          metrics.registerMBean();
+        } catch (JMException e) {
+          logger.warning("Unable to publish metrics through JMX: " + e);
+        }
+      }
+    }
+
+    String journalLocation = getSetting(SettingsKey.JOURNAL_LOCATION);
+    if (journalLocation != null) {
+      try {
+        journal = new ProcessedJournal(new File(journalLocation));
+      } catch (IOException e) {
+        err.println("Unable to open journal: " + e);
+        return EXIT_CONVERSION_FAILED;
+      }
+    }
+    String recordCacheLocation = getSetting(SettingsKey.RECORD_CACHE_FILE);
+    if (recordCacheLocation != null) {
+      try {
+        recordCache = new PjrRecordCache(new File(recordCacheLocation));
+      } catch (IOException e) {
+        // Converting without the cache is only slower.
+        logger.warning("Unable to open record cache: " + e);
+      }
+    }
+    try {
+      if (watch) {
+        return watch(new File(accountIdMapLocation), new File(iifFileLocation));
+      }
+      if (serve) {
+        return serve(new File(accountIdMapLocation), iifFileLocation);
+      }
+      if (mergeShards) {
+        return mergeShards(iifFileLocation);
+      }
+      if (getSetting(SettingsKey.SHARD_COUNT) != null) {
+        return convertShard(new File(accountIdMapLocation), iifFileLocation);
+      }
+      return convert(new File(accountIdMapLocation), iifFileLocation);
+    } finally {
+      if (journal != null) {
+        try {
+          journal.close();
+        } catch (IOException e) {
+          logger.warning("Unable to close journal: " + e);
+        }
+      }
+      if (recordCache != null) {
+        try {
+          recordCache.close();
+        } catch (IOException e) {
+          logger.warning("Unable to close record cache: " + e);
+        }
+      }
+    }
+  }
+
+  private int convert(File accountIdMapFile, String iifFileLocation) {
+
+    Pjr2IifConverter pjr2IifConverter;
+    PartitionedIifWriter partitionedIifWriter;
+    List<File> pjrFiles;
+    try {
+      pjrFiles = findPjrFiles();
+      pjr2IifConverter = new Pjr2IifConverter(pjrFiles, accountIdMapFile);
+      configure(pjr2IifConverter);
+      partitionedIifWriter = newPartitionedIifWriter(iifFileLocation);
+    } catch (IllegalArgumentException e) {
+      err.println(e.getMessage());
+      return EXIT_USAGE;
+    } catch (IOException e) {
+      err.println("Unable to list PJR files: " + e);
+      return EXIT_NO_INPUT;
+    }
+    if (pjrFiles.isEmpty()) {
+      err.println("No PJR files found.");
+      return EXIT_NO_INPUT;
+    }
+
+    long startNanos = System.nanoTime();
+    try {
+      boolean ignoreNegativeTransactions =
+          getBooleanSetting(SettingsKey.IGNORE_NEGATIVE_TRANSACTIONS);
+      if (partitionedIifWriter != null) {
+        try {
+          pjr2IifConverter.convert(partitionedIifWriter, ignoreNegativeTransactions);
+          partitionedIifWriter.close();
+        } finally {
+          partitionedIifWriter.abort();
+        }
+      } else if (STDOUT.equals(iifFileLocation)) {
+        pjr2IifConverter.convert(out, ignoreNegativeTransactions);
+      } else {
+        // Written in full to a temporary file first, so a failure leaves any earlier IIF alone.
+        AtomicOutputFile iifFile = new AtomicOutputFile(new File(iifFileLocation));
+        try {
+          pjr2IifConverter.convert(iifFile.getWriter(), ignoreNegativeTransactions);
+          iifFile.commit();
+        } finally {
+          iifFile.close();
+        }
+      }
+      if (journal != null) {
+        journal.commit();
+      }
+    } catch (Exception e) {
+      if (journal != null) {
+        journal.discardPending();
+      }
+      err.println("Conversion failed: " + e);
+      e.printStackTrace(err);
+      return EXIT_CONVERSION_FAILED;
+    }
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+
+    // Only now that the IIF and the journal are safely on disk can the sources go.
+    SourceCleaner sourceCleaner = newSourceCleaner();
+    SourceCleaner.Result cleanupResult = cleanUp(sourceCleaner, pjrFiles);
+
+    // The summary goes to stderr so that it can't end up in an IIF written to stdout.
+    String output = STDOUT.equals(iifFileLocation) ? "stdout" : iifFileLocation;
+    if (partitionedIifWriter != null) {
+      output = partitionedIifWriter.getParts().size() + " parts listed in " +
+          partitionedIifWriter.getManifestFile();
+    }
+    double rate = pjr2IifConverter.getFileCount() / Math.max(seconds, 1e-9);
+    if (pjr2IifConverter.getTransactionTag() == null) {
+      err.println(String.format(
+          "Converted %d PJR files into %d transactions in %s in %.2f s (%.1f files/s).",
+          pjr2IifConverter.getFileCount(), pjr2IifConverter.getTransactionCount(), output,
+          seconds, rate));
+    } else {
+      err.println(String.format(
+          "Converted %d of %d transactions into %s in %.2f s (%.1f transactions/s).",
+          pjr2IifConverter.getTransactionCount(), pjr2IifConverter.getFileCount(), output,
+          seconds, rate));
+    }
+    if (pjr2IifConverter.getAggregation() != Aggregation.NONE) {
+      err.println("Rolled up into " + pjr2IifConverter.getInvoiceCount() + " invoices.");
+    }
+    printCleanupResult(sourceCleaner, cleanupResult, pjrFiles.size());
+    return EXIT_OK;
+  }
+
+  private int convertShard(File accountIdMapFile, String iifFileLocation) {
+    if (journal != null) {
+      // Shards run in separate processes, which can't share a journal.
+      err.println(SettingsKey.JOURNAL_LOCATION + " can't be used with shards.");
+      return EXIT_USAGE;
+    }
+    if (recordCache != null) {
+      err.println(SettingsKey.RECORD_CACHE_FILE + " can't be used with shards.");
+      return EXIT_USAGE;
+    }
+
+    int shardCount;
+    int shardIndex;
+    List<File> pjrFiles;
+    List<File> shardFiles = new ArrayList<File>();
+    Pjr2IifConverter pjr2IifConverter;
+    try {
+      shardCount = getShardCount(iifFileLocation);
+      shardIndex = getIntSetting(SettingsKey.SHARD_INDEX, -1);
+      if (shardIndex < 0 || shardIndex >= shardCount) {
+        throw new IllegalArgumentException(SettingsKey.SHARD_INDEX + " must be from 0 to " +
+            (shardCount - 1) + ".");
+      }
+      pjrFiles = findPjrFiles();
+      for (File pjrFile : pjrFiles) {
+        // String.hashCode() is the same on every JVM, and the name is the same wherever the
+        // folder is mounted, so all the processes agree on the shards.
+        if (Math.floorMod(pjrFile.getName().hashCode(), shardCount) == shardIndex) {
+          shardFiles.add(pjrFile);
+        }
+      }
+      pjr2IifConverter = new Pjr2IifConverter(shardFiles, accountIdMapFile);
+      configure(pjr2IifConverter);
+      // Runs keep every transaction, and the merge sums them up across all the shards.
+      pjr2IifConverter.setAggregation(Aggregation.NONE);
+      pjr2IifConverter.setSortOutput(true);
+    } catch (IllegalArgumentException e) {
+      err.println(e.getMessage());
+      return EXIT_USAGE;
+    } catch (IOException e) {
+      err.println("Unable to list PJR files: " + e);
+      return EXIT_NO_INPUT;
+    }
+    if (pjrFiles.isEmpty()) {
+      err.println("No PJR files found.");
+      return EXIT_NO_INPUT;
+    }
+
+    // A shard with no files still writes its run, so that the merge knows it's done.
+    File runFile = RunFile.getShardFile(new File(iifFileLocation), shardIndex, shardCount);
+    long startNanos = System.nanoTime();
+    try {
+      AtomicOutputFile outputFile = new AtomicOutputFile(runFile);
+      try {
+        List<String> sources = new ArrayList<String>(shardFiles.size());
+        for (File shardFile : shardFiles) {
+          sources.add(shardFile.getAbsolutePath());
+        }
+        RunFile.Writer runWriter = new RunFile.Writer(outputFile.getOutputStream(), sources);
+        pjr2IifConverter.convert(runWriter,
+                                 getBooleanSetting(SettingsKey.IGNORE_NEGATIVE_TRANSACTIONS));
+        runWriter.finish();
+        outputFile.commit();
+      } finally {
+        outputFile.close();
+      }
+    } catch (Exception e) {
+      err.println("Conversion failed: " + e);
+      e.printStackTrace(err);
+      return EXIT_CONVERSION_FAILED;
+    }
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+
+    // The sources stay until the merge has written the IIF, which then cleans them up.
+    err.println(String.format(
+        "Converted %d of %d PJR files into %d transactions in %s in %.2f s.",
+        pjr2IifConverter.getFileCount(), pjrFiles.size(), pjr2IifConverter.getTransactionCount(),
+        runFile, seconds));
+    return EXIT_OK;
+  }
+
+  private int mergeShards(String iifFileLocation) {
+    int shardCount;
+    Aggregation aggregation;
+    PartitionedIifWriter partitionedIifWriter;
+    try {
+      shardCount = getShardCount(iifFileLocation);
+      aggregation = getAggregation();
+      partitionedIifWriter = newPartitionedIifWriter(iifFileLocation);
+    } catch (IllegalArgumentException e) {
+      err.println(e.getMessage());
+      return EXIT_USAGE;
+    }
+
+    List<File> runFiles = new ArrayList<File>(shardCount);
+    List<File> missingRunFiles = new ArrayList<File>();
+    for (int shardIndex = 0; shardIndex < shardCount; shardIndex++) {
+      File runFile = RunFile.getShardFile(new File(iifFileLocation), shardIndex, shardCount);
+      runFiles.add(runFile);
+      if (!runFile.isFile()) {
+        missingRunFiles.add(runFile);
+      }
+    }
+    if (!missingRunFiles.isEmpty()) {
+      err.println("Missing the runs of " + missingRunFiles.size() + " of " + shardCount +
+          " shards:");
+      for (File runFile : missingRunFiles) {
+        err.println("  " + runFile);
+      }
+      return EXIT_NO_INPUT;
+    }
+
+    long startNanos = System.nanoTime();
+    long transactionCount;
+    long invoiceCount;
+    List<File> pjrFiles = new ArrayList<File>();
+    try {
+      for (File runFile : runFiles) {
+        for (String source : RunFile.readSources(runFile)) {
+          pjrFiles.add(new File(source));
+        }
+      }
+
+      TransactionSink transactionSink;
+      AtomicOutputFile iifFile = null;
+      if (partitionedIifWriter != null) {
+        partitionedIifWriter.setWriteMemos(aggregation != Aggregation.NONE);
+        transactionSink = partitionedIifWriter;
+      } else {
+        // Written in full to a temporary file first, so a failure leaves any earlier IIF alone.
+        iifFile = new AtomicOutputFile(new File(iifFileLocation));
+        IifWriter iifWriter = new IifWriter(iifFile.getWriter());
+        iifWriter.setWriteMemos(aggregation != Aggregation.NONE);
+        iifWriter.writeHeader();
+        transactionSink = iifWriter;
+      }
+      try {
+        if (aggregation == Aggregation.NONE) {
+          transactionCount = RunFile.merge(runFiles, transactionSink);
+          invoiceCount = transactionCount;
+        } else {
+          final TransactionAggregator transactionAggregator =
+              new TransactionAggregator(aggregation);
+          transactionCount = RunFile.merge(runFiles, new TransactionSink() {
+            @Override
+            public void write(int receiptEpochDay, String transactionId, long amountCents,
+                String account, String memo) {
+              transactionAggregator.add(receiptEpochDay, transactionId, amountCents, account);
+            }
+
+            @Override
+            public void flush() {}
+          });
+          invoiceCount = transactionAggregator.writeTo(transactionSink);
+          transactionSink.flush();
+        }
+        if (partitionedIifWriter != null) {
+          partitionedIifWriter.close();
+        } else {
+          iifFile.commit();
+        }
+      } finally {
+        if (partitionedIifWriter != null) {
+          partitionedIifWriter.abort();
+        } else {
+          iifFile.close();
+        }
+      }
+    } catch (IOException e) {
+      err.println("Merge failed: " + e);
+      e.printStackTrace(err);
+      return EXIT_CONVERSION_FAILED;
+    }
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+
+    // The shards left their sources for now, when the IIF holding them is safely on disk.
+    SourceCleaner sourceCleaner = newSourceCleaner();
+    SourceCleaner.Result cleanupResult = cleanUp(sourceCleaner, pjrFiles);
+
+    // A run left behind could be merged again with next time's shards.
+    for (File runFile : runFiles) {
+      if (!runFile.delete()) {
+        logger.warning("Unable to delete " + runFile);
+      }
+    }
+
+    String output = iifFileLocation;
+    if (partitionedIifWriter != null) {
+      output = partitionedIifWriter.getParts().size() + " parts listed in " +
+          partitionedIifWriter.getManifestFile();
+    }
+    err.println(String.format("Merged %d transactions from %d shards into %s in %.2f s.",
+                              transactionCount, shardCount, output, seconds));
+    if (aggregation != Aggregation.NONE) {
+      err.println("Rolled up into " + invoiceCount + " invoices.");
+    }
+    printCleanupResult(sourceCleaner, cleanupResult, pjrFiles.size());
+    return EXIT_OK;
+  }
+
+  private int getShardCount(String iifFileLocation) {
+    int shardCount = getIntSetting(SettingsKey.SHARD_COUNT, 0);
+    if (shardCount < 1) {
+      throw new IllegalArgumentException(SettingsKey.SHARD_COUNT + " must be at least 1.");
+    }
+    if (STDOUT.equals(iifFileLocation)) {
+      throw new IllegalArgumentException("Shards need an IIF output file to name their runs.");
+    }
+    return shardCount;
+  }
+
+  // Returns null if there's no cleaner, or it was interrupted.
+  private SourceCleaner.Result cleanUp(SourceCleaner sourceCleaner, List<File> pjrFiles) {
+    if (sourceCleaner == null) {
+      return null;
+    }
+    try {
+      return sourceCleaner.clean(pjrFiles);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      err.println("Interrupted while cleaning up PJR files.");
+      return null;
+    }
+  }
+
+  private void printCleanupResult(SourceCleaner sourceCleaner,
+      SourceCleaner.Result cleanupResult, int pjrFileCount) {
+    if (cleanupResult == null) {
+      return;
+    }
+    err.println((sourceCleaner.getArchiveDirectory() == null ? "Deleted " : "Archived ") +
+        cleanupResult.getCleanedCount() + " of " + pjrFileCount + " PJR files.");
+    for (Map.Entry<File, IOException> failure : cleanupResult.getFailures().entrySet()) {
+      err.println("  Left " + failure.getKey() + ": " + failure.getValue());
+    }
+  }
+
+  private int watch(final File accountIdMapFile, File iifFile) {
+    List<String> locations = getLocations();
+    if (locations.size() != 1 || !new File(locations.get(0)).isDirectory()) {
+      err.println("Watching needs exactly one PJR directory.");
+      return EXIT_USAGE;
+    }
+    if (STDOUT.equals(iifFile.getPath())) {
+      err.println("Watching needs an IIF output file.");
+      return EXIT_USAGE;
+    }
+
+    PjrFolderWatcher pjrFolderWatcher = new PjrFolderWatcher(
+        new File(locations.get(0)), iifFile, new PjrFolderWatcher.ConverterFactory() {
+          @Override
+          public Pjr2IifConverter create(List<File> pjrFiles) {
+            Pjr2IifConverter pjr2IifConverter = new Pjr2IifConverter(pjrFiles, accountIdMapFile);
+            configure(pjr2IifConverter);
+            return pjr2IifConverter;
+          }
+        });
+    try {
+      // Check the settings up front rather than on the first arrival.
+      configure(new Pjr2IifConverter(Collections.<File>emptyList(), accountIdMapFile));
+      pjrFolderWatcher.setIntervalMillis(
+          TimeUnit.SECONDS.toMillis(
+              Math.max(1, getIntSetting(SettingsKey.WATCH_INTERVAL_SECONDS, 5))));
+    } catch (IllegalArgumentException e) {
+      err.println(e.getMessage());
+      return EXIT_USAGE;
+    }
+    pjrFolderWatcher.setRollover(getBooleanSetting(SettingsKey.WATCH_ROLLOVER));
+    pjrFolderWatcher.setIgnoreNegativeTransactions(
+        getBooleanSetting(SettingsKey.IGNORE_NEGATIVE_TRANSACTIONS));
+    pjrFolderWatcher.setSourceCleaner(newSourceCleaner());
+    pjrFolderWatcher.setJournal(journal);
+
+    try {
+      pjrFolderWatcher.run();
+    } catch (IOException e) {
+      err.println("Stopped watching: " + e);
+      return EXIT_CONVERSION_FAILED;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return EXIT_OK;
+  }
+
+  private int serve(File accountIdMapFile, String iifFileLocation) {
+    if (journal != null) {
+      // The journal is written by one conversion at a time, and requests are converted at once.
+      err.println(SettingsKey.JOURNAL_LOCATION + " can't be used with --serve.");
+      return EXIT_USAGE;
+    }
+
+    final AccountIdMap accountIdMap;
+    try {
+      accountIdMap = AccountIdMap.load(accountIdMapFile);
+    } catch (Exception e) {
+      err.println("Unable to load account ID map: " + e);
+      return EXIT_CONVERSION_FAILED;
+    }
+    PjrFolderWatcher.ConverterFactory converterFactory = new PjrFolderWatcher.ConverterFactory() {
+      @Override
+      public Pjr2IifConverter create(List<File> pjrFiles) {
+        Pjr2IifConverter pjr2IifConverter = new Pjr2IifConverter(pjrFiles, accountIdMap);
+        configure(pjr2IifConverter);
+        // Uploads are deleted once converted, so there's nothing to reuse.
+        pjr2IifConverter.setRecordCache(null);
+        return pjr2IifConverter;
+      }
+    };
+
+    ConversionServer conversionServer;
+    try {
+      converterFactory.create(Collections.<File>emptyList());
+      int port = getIntSetting(SettingsKey.SERVER_PORT, ConversionServer.DEFAULT_PORT);
+      // Only reachable from this machine, since uploads aren't authenticated.
+      conversionServer = new ConversionServer(
+          new InetSocketAddress(InetAddress.getLoopbackAddress(), port), converterFactory,
+          STDOUT.equals(iifFileLocation) ? null : new File(iifFileLocation));
+      conversionServer.setMaxConcurrentRequests(getIntSetting(
+          SettingsKey.SERVER_MAX_CONCURRENT_REQUESTS,
+          conversionServer.getMaxConcurrentRequests()));
+      int maxUploadMegabytes = getIntSetting(SettingsKey.SERVER_MAX_UPLOAD_MB, -1);
+      if (maxUploadMegabytes != -1) {
+        if (maxUploadMegabytes < 1) {
+          throw new IllegalArgumentException(
+              SettingsKey.SERVER_MAX_UPLOAD_MB + " must be at least 1.");
+        }
+        conversionServer.setMaxUploadBytes(maxUploadMegabytes * 1024L * 1024);
+      }
+      int maxDecompressedMegabytes = getIntSetting(SettingsKey.SERVER_MAX_DECOMPRESSED_MB, -1);
+      if (maxDecompressedMegabytes != -1) {
+        if (maxDecompressedMegabytes < 1) {
+          throw new IllegalArgumentException(
+              SettingsKey.SERVER_MAX_DECOMPRESSED_MB + " must be at least 1.");
+        }
+        conversionServer.setMaxDecompressedBytes(maxDecompressedMegabytes * 1024L * 1024);
+      }
+      int rolloverMegabytes = getIntSetting(SettingsKey.SERVER_ROLLOVER_MB, -1);
+      if (rolloverMegabytes != -1) {
+        if (rolloverMegabytes < 1) {
+          throw new IllegalArgumentException(
+              SettingsKey.SERVER_ROLLOVER_MB + " must be at least 1.");
+        }
+        conversionServer.setRolloverBytes(rolloverMegabytes * 1024L * 1024);
+      }
+    } catch (IllegalArgumentException e) {
+      err.println(e.getMessage());
+      return EXIT_USAGE;
+    }
+
+    try {
+      conversionServer.start();
+    } catch (IOException e) {
+      err.println("Unable to start server: " + e);
+      return EXIT_CONVERSION_FAILED;
+    }
+    err.println("Serving on http://" + conversionServer.getAddress().getHostString() + ":" +
+        conversionServer.getAddress().getPort() + "/convert");
+    try {
+      // Requests are handled on the server's threads until the process is stopped.
+      new CountDownLatch(1).await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      conversionServer.stop(1);
+    }
+    return EXIT_OK;
+  }
+
+  /**
+   * @return false if the usage message should be shown instead of running a conversion.
+   */
+  private boolean parseArgs(String[] args) throws IOException {
+    Properties overrides = new Properties();
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (!arg.startsWith("--")) {
+        inputs.add(arg);
+        continue;
+      }
+
+      String name = arg.substring(2);
+      String value = null;
+      int indexOfEquals = name.indexOf('=');
+      if (indexOfEquals != -1) {
+        value = name.substring(indexOfEquals + 1);
+        name = name.substring(0, indexOfEquals);
+      }
+      name = name.replace('-', '_');
+
+      if (name.equals("help")) {
+        return false;
+      }
+      if (name.equals("watch")) {
+        watch = true;
+        continue;
+      }
+      if (name.equals("serve")) {
+        serve = true;
+        continue;
+      }
+      if (name.equals("merge_shards")) {
+        mergeShards = true;
+        continue;
+      }
+      if (name.equals("config")) {
+        if (value == null) {
+          value = nextValue(args, ++i, arg);
+        }
+        loadConfig(value);
+        continue;
+      }
+
+      SettingsKey settingsKey = SettingsKey.getEnum(name);
+      if (settingsKey == null) {
+        throw new IllegalArgumentException("Unknown option " + arg);
+      }
+      if (value == null) {
+        value = BOOLEAN_SETTINGS.contains(settingsKey) ?
+            Boolean.TRUE.toString() : nextValue(args, ++i, arg);
+      }
+      overrides.setProperty(settingsKey.getKey(), value);
+    }
+
+    properties.putAll(overrides);
+    return true;
+  }
+
+  private static String nextValue(String[] args, int i, String option) {
+    if (i >= args.length) {
+      throw new IllegalArgumentException("Missing value for " + option);
+    }
+    return args[i];
+  }
+
+  private void loadConfig(String configLocation) throws IOException {
+    InputStream inputStream = new FileInputStream(configLocation);
+    try {
+      properties.load(inputStream);
+    } finally {
+      inputStream.close();
+    }
+  }
+
+  private String getSetting(SettingsKey settingsKey) {
+    return properties.getProperty(settingsKey.getKey());
+  }
+
+  private boolean getBooleanSetting(SettingsKey settingsKey) {
+    return Boolean.parseBoolean(getSetting(settingsKey));
+  }
+
+  private int getIntSetting(SettingsKey settingsKey, int defaultValue) {
+    String value = getSetting(settingsKey);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid " + settingsKey + ": " + value);
+    }
+  }
+
+  private void configure(Pjr2IifConverter pjr2IifConverter) {
+    String parserEngineString = getSetting(SettingsKey.PARSER_ENGINE);
+    if (parserEngineString != null) {
+      ParserEngine parserEngine = ParserEngine.getEnum(parserEngineString);
+      if (parserEngine == null) {
+        throw new IllegalArgumentException("Unknown " + SettingsKey.PARSER_ENGINE + ": " +
+            parserEngineString);
+      }
+      pjr2IifConverter.setParserEngine(parserEngine);
+    }
+    String readModeString = getSetting(SettingsKey.READ_MODE);
+    if (readModeString != null) {
+      ReadMode readMode = ReadMode.getEnum(readModeString);
+      if (readMode == null) {
+        throw new IllegalArgumentException("Unknown " + SettingsKey.READ_MODE + ": " +
+            readModeString);
+      }
+      pjr2IifConverter.setReadMode(readMode);
+    }
+    pjr2IifConverter.setAggregation(getAggregation());
+    pjr2IifConverter.setSortOutput(getBooleanSetting(SettingsKey.SORT_OUTPUT));
+    int sortMemoryMegabytes = getIntSetting(SettingsKey.SORT_MEMORY_MB, -1);
+    if (sortMemoryMegabytes != -1) {
+      if (sortMemoryMegabytes < 1) {
+        throw new IllegalArgumentException(SettingsKey.SORT_MEMORY_MB + " must be at least 1.");
+      }
+      pjr2IifConverter.setSortMemoryBytes(sortMemoryMegabytes * 1024L * 1024);
+    }
+    String transactionTag = getSetting(SettingsKey.TRANSACTION_TAG);
+    if (transactionTag != null) {
+      pjr2IifConverter.setTransactionTag(transactionTag);
+    } else if (getBooleanSetting(SettingsKey.MULTI_TRANSACTION)) {
+      pjr2IifConverter.setTransactionTag(MultiTransactionPjrParser.DEFAULT_TRANSACTION_TAG);
+    }
+    pjr2IifConverter.setThreadCount(
+        getIntSetting(SettingsKey.THREAD_COUNT, Runtime.getRuntime().availableProcessors()));
+    pjr2IifConverter.setJournal(journal);
+    pjr2IifConverter.setRecordCache(recordCache);
+    pjr2IifConverter.setMetrics(metrics);
+  }
+
+  private Aggregation getAggregation() {
+    String aggregationString = getSetting(SettingsKey.AGGREGATION);
+    if (aggregationString == null) {
+      return Aggregation.NONE;
+    }
+    Aggregation aggregation = Aggregation.getEnum(aggregationString);
+    if (aggregation == null) {
+      throw new IllegalArgumentException("Unknown " + SettingsKey.AGGREGATION + ": " +
+          aggregationString);
+    }
+    return aggregation;
+  }
+
+  // Returns null if the PJR files are to be left alone after converting.
+  private SourceCleaner newSourceCleaner() {
+    String archiveLocation = getSetting(SettingsKey.ARCHIVE_LOCATION);
+    if (archiveLocation == null && !getBooleanSetting(SettingsKey.DELETE_PJRS_ON_CONVERT)) {
+      return null;
+    }
+    SourceCleaner sourceCleaner =
+        new SourceCleaner(archiveLocation == null ? null : new File(archiveLocation));
+    sourceCleaner.setThreadCount(
+        getIntSetting(SettingsKey.THREAD_COUNT, Runtime.getRuntime().availableProcessors()));
+    return sourceCleaner;
+  }
+
+  // Returns null unless the output is to be partitioned.
+  private PartitionedIifWriter newPartitionedIifWriter(String iifFileLocation) {
+    int maxTransactions = getIntSetting(SettingsKey.PARTITION_TRANSACTIONS, 0);
+    int maxBytes = getIntSetting(SettingsKey.PARTITION_BYTES, 0);
+    boolean splitByDate = getBooleanSetting(SettingsKey.PARTITION_BY_DATE);
+    if (maxTransactions <= 0 && maxBytes <= 0 && !splitByDate) {
+      return null;
+    }
+    if (STDOUT.equals(iifFileLocation)) {
+      throw new IllegalArgumentException("Partitioned output can't go to stdout.");
+    }
+    PartitionedIifWriter partitionedIifWriter =
+        new PartitionedIifWriter(new File(iifFileLocation));
+    partitionedIifWriter.setMaxTransactions(Math.max(maxTransactions, 0));
+    partitionedIifWriter.setMaxChars(Math.max(maxBytes, 0));
+    partitionedIifWriter.setSplitByDate(splitByDate);
+    return partitionedIifWriter;
+  }
+
+  private List<String> getLocations() {
+    if (inputs.isEmpty() && getSetting(SettingsKey.PJR_LOCATION) != null) {
+      return Collections.singletonList(getSetting(SettingsKey.PJR_LOCATION));
+    }
+    return inputs;
+  }
+
+  private List<File> findPjrFiles() throws IOException {
+    List<File> pjrFiles = new ArrayList<File>();
+    for (String location : getLocations()) {
+      File file = new File(location);
+      if (file.isDirectory()) {
+        File[] files = file.listFiles(Pjr2IifConverter.PJR_INPUT_FILENAME_FILTER);
+        if (files == null) {
+          throw new IOException("Unable to list " + file);
+        }
+        Arrays.sort(files);
+        pjrFiles.addAll(Arrays.asList(files));
+      } else if (isGlob(file.getName())) {
+        pjrFiles.addAll(expandGlob(file));
+      } else if (file.isFile()) {
+        pjrFiles.add(file);
+      } else {
+        throw new IOException(file + " does not exist");
+      }
+    }
+    return pjrFiles;
+  }
+
+  private static boolean isGlob(String name) {
+    for (char c : "*?[{".toCharArray()) {
+      if (name.indexOf(c) != -1) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Only the last part of the path may be a pattern, e.g. /var/pjr/PJR2021*.xml
+  private static List<File> expandGlob(File file) throws IOException {
+    Path directory = file.getParentFile() == null ?
+        Paths.get(".") : file.getParentFile().toPath();
+    List<File> files = new ArrayList<File>();
+    DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory, file.getName());
+    try {
+      for (Path path : directoryStream) {
+        if (Files.isRegularFile(path)) {
+          files.add(path.toFile());
+        }
+      }
+    } finally {
+      directoryStream.close();
+    }
+    Collections.sort(files);
+    return files;
+  }
+}
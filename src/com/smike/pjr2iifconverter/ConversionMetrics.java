@@ -0,0 +1,266 @@
+package com.smike.pjr2iifconverter;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts what happened to each PJR file and times each stage of a conversion. Counters and
+ * timings accumulate across conversions until {@link #reset()}, and may be updated from any
+ * thread.
+ *
+ * Collecting metrics is optional: converters only look at the clock when they have been given a
+ * metrics object.
+ */
+public class ConversionMetrics implements ConversionMetricsMXBean {
+  private static Logger logger = Logger.getLogger(ConversionMetrics.class.getName());
+
+  public static final String OBJECT_NAME = "com.smike.pjr2iifconverter:type=ConversionMetrics";
+
+  public enum Stage {
+    /** Reading bytes from the PJR file. */
+    READ,
+    /** Parsing the XML, not counting the time spent reading. */
+    PARSE,
+    /** Looking up the account name and decoding the date and amount. */
+    LOOKUP,
+    /** Encoding the IIF record. */
+    FORMAT,
+    /** Handing the IIF record to the output. */
+    WRITE
+  }
+
+  public enum SkipReason {
+    UNKNOWN_ACCOUNT,
+    MISSING_AMOUNT,
+    ALREADY_CONVERTED,
+    DUPLICATE_TRANSACTION
+  }
+
+  private AtomicLong filesSeen = new AtomicLong();
+  private AtomicLong filesConverted = new AtomicLong();
+  private AtomicLong transactionsWritten = new AtomicLong();
+  private AtomicLong negativeFiltered = new AtomicLong();
+  private AtomicLong[] skippedFiles = new AtomicLong[SkipReason.values().length];
+  private LatencyHistogram[] stageHistograms = new LatencyHistogram[Stage.values().length];
+
+  private File reportFile;
+
+  public ConversionMetrics() {
+    for (int i = 0; i < skippedFiles.length; i++) {
+      skippedFiles[i] = new AtomicLong();
+    }
+    for (int i = 0; i < stageHistograms.length; i++) {
+      stageHistograms[i] = new LatencyHistogram();
+    }
+  }
+
+  public void addFilesSeen(long count) {
+    filesSeen.addAndGet(count);
+  }
+
+  public void addFileConverted() {
+    filesConverted.incrementAndGet();
+  }
+
+  public void addTransactionWritten() {
+    transactionsWritten.incrementAndGet();
+  }
+
+  public void addNegativeFiltered() {
+    negativeFiltered.incrementAndGet();
+  }
+
+  public void addSkipped(SkipReason skipReason, long count) {
+    skippedFiles[skipReason.ordinal()].addAndGet(count);
+  }
+
+  public void recordStage(Stage stage, long nanos) {
+    stageHistograms[stage.ordinal()].record(nanos);
+  }
+
+  public LatencyHistogram getStageHistogram(Stage stage) {
+    return stageHistograms[stage.ordinal()];
+  }
+
+  public long getSkipped(SkipReason skipReason) {
+    return skippedFiles[skipReason.ordinal()].get();
+  }
+
+  /**
+   * Returns how many of the files seen have been either converted, filtered out or skipped.
+   */
+  public long getFilesProcessed() {
+    long filesProcessed = getFilesConverted() + getNegativeFiltered();
+    for (AtomicLong skipped : skippedFiles) {
+      filesProcessed += skipped.get();
+    }
+    return filesProcessed;
+  }
+
+  @Override
+  public long getFilesSeen() {
+    return filesSeen.get();
+  }
+
+  @Override
+  public long getFilesConverted() {
+    return filesConverted.get();
+  }
+
+  @Override
+  public long getTransactionsWritten() {
+    return transactionsWritten.get();
+  }
+
+  @Override
+  public long getNegativeFiltered() {
+    return negativeFiltered.get();
+  }
+
+  @Override
+  public Map<String, Long> getSkippedFiles() {
+    Map<String, Long> skipped = new LinkedHashMap<String, Long>();
+    for (SkipReason skipReason : SkipReason.values()) {
+      skipped.put(getName(skipReason), getSkipped(skipReason));
+    }
+    return skipped;
+  }
+
+  @Override
+  public Map<String, Long> getStageTotalMicros() {
+    Map<String, Long> totals = new LinkedHashMap<String, Long>();
+    for (Stage stage : Stage.values()) {
+      totals.put(getName(stage), getStageHistogram(stage).getTotalNanos() / 1000);
+    }
+    return totals;
+  }
+
+  @Override
+  public Map<String, Long> getStageP99Micros() {
+    Map<String, Long> percentiles = new LinkedHashMap<String, Long>();
+    for (Stage stage : Stage.values()) {
+      percentiles.put(getName(stage), getStageHistogram(stage).getPercentileNanos(0.99) / 1000);
+    }
+    return percentiles;
+  }
+
+  @Override
+  public String getReport() {
+    StringBuilder json = new StringBuilder("{\n");
+    json.append("  \"filesSeen\": ").append(getFilesSeen()).append(",\n");
+    json.append("  \"filesConverted\": ").append(getFilesConverted()).append(",\n");
+    json.append("  \"transactionsWritten\": ").append(getTransactionsWritten()).append(",\n");
+    json.append("  \"negativeFiltered\": ").append(getNegativeFiltered()).append(",\n");
+    json.append("  \"skipped\": {");
+    String separator = "\n";
+    for (Map.Entry<String, Long> entry : getSkippedFiles().entrySet()) {
+      json.append(separator).append("    \"").append(entry.getKey()).append("\": ")
+          .append(entry.getValue());
+      separator = ",\n";
+    }
+    json.append("\n  },\n");
+    json.append("  \"stages\": {");
+    separator = "\n";
+    for (Stage stage : Stage.values()) {
+      LatencyHistogram histogram = getStageHistogram(stage);
+      json.append(separator).append("    \"").append(getName(stage)).append("\": {")
+          .append("\"count\": ").append(histogram.getCount())
+          .append(", \"totalMicros\": ").append(histogram.getTotalNanos() / 1000)
+          .append(", \"meanMicros\": ").append(toMicros(histogram.getMeanNanos()))
+          .append(", \"p50Micros\": ").append(toMicros(histogram.getPercentileNanos(0.5)))
+          .append(", \"p99Micros\": ").append(toMicros(histogram.getPercentileNanos(0.99)))
+          .append(", \"maxMicros\": ").append(toMicros(histogram.getMaxNanos()))
+          .append("}");
+      separator = ",\n";
+    }
+    json.append("\n  }\n}\n");
+    return json.toString();
+  }
+
+  public void writeReport(File file) throws IOException {
+    Files.write(file.toPath(), getReport().getBytes(StandardCharsets.UTF_8));
+  }
+
+  public File getReportFile() {
+    return reportFile;
+  }
+
+  /**
+   * Sets a file that the JSON report is rewritten to whenever a conversion finishes.
+   */
+  public void setReportFile(File reportFile) {
+    this.reportFile = reportFile;
+  }
+
+  /**
+   * Called by converters when they finish, successfully or not. Converters that finish at the
+   * same time take turns writing the report.
+   */
+  public synchronized void conversionFinished() {
+    if (reportFile != null) {
+      try {
+        writeReport(reportFile);
+      } catch (IOException e) {
+        logger.warning("Unable to write metrics report to " + reportFile + ": " + e);
+      }
+    }
+  }
+
+  @Override
+  public void reset() {
+    filesSeen.set(0);
+    filesConverted.set(0);
+    transactionsWritten.set(0);
+    negativeFiltered.set(0);
+    for (AtomicLong skipped : skippedFiles) {
+      skipped.set(0);
+    }
+    for (LatencyHistogram histogram : stageHistograms) {
+      histogram.reset();
+    }
+  }
+
+  /**
+   * Makes these metrics visible through JMX under {@link #OBJECT_NAME}, replacing any that were
+   * registered before.
+   */
+  public void registerMBean() throws JMException {
+    MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    ObjectName objectName = new ObjectName(OBJECT_NAME);
+    if (mBeanServer.isRegistered(objectName)) {
+      mBeanServer.unregisterMBean(objectName);
+    }
+    mBeanServer.registerMBean(this, objectName);
+  }
+
+  private static String toMicros(long nanos) {
+    return String.format(Locale.ROOT, "%.1f", nanos / 1000.0);
+  }
+
+  // e.g. UNKNOWN_ACCOUNT becomes unknownAccount
+  private static String getName(Enum<?> value) {
+    StringBuilder name = new StringBuilder();
+    boolean upperCase = false;
+    for (char c : value.name().toLowerCase(Locale.ROOT).toCharArray()) {
+      if (c == '_') {
+        upperCase = true;
+      } else {
+        name.append(upperCase ? Character.toUpperCase(c) : c);
+        upperCase = false;
+      }
+    }
+    return name.toString();
+  }
+}
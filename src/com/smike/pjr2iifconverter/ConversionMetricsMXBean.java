@@ -0,0 +1,29 @@
+package com.smike.pjr2iifconverter;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link ConversionMetrics}. Durations are in microseconds.
+ */
+public interface ConversionMetricsMXBean {
+  long getFilesSeen();
+
+  long getFilesConverted();
+
+  long getTransactionsWritten();
+
+  long getNegativeFiltered();
+
+  Map<String, Long> getSkippedFiles();
+
+  Map<String, Long> getStageTotalMicros();
+
+  Map<String, Long> getStageP99Micros();
+
+  /**
+   * Returns the full report as JSON.
+   */
+  String getReport();
+
+  void reset();
+}
@@ -0,0 +1,560 @@
+package com.smike.pjr2iifconverter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local HTTP service that converts PJRs posted to it, built on the JDK's own HTTP server.
+ *
+ * <ul>
+ * <li>{@code POST /convert} takes a PJR, or a {@code .zip} or {@code .tar.gz} of PJRs when the
+ *     content type is {@code application/zip} or {@code application/gzip}. The IIF is streamed
+ *     back, or with {@code ?output=append}, appended to the output file and summed up as JSON.
+ *     With {@code rolloverBytes} set, appends go to timestamped files next to the output file
+ *     instead, moving on to a new one whenever the last reaches that size.
+ *     {@code ?ignore_negative_transactions=true} leaves out negative transactions.
+ * <li>{@code GET /status} reports the concurrency limit, request counts and latency percentiles
+ *     as JSON.
+ * </ul>
+ *
+ * Each request runs on its own virtual thread where the JDK has them (Java 21 and later), and on
+ * a pooled platform thread otherwise. At most {@code maxConcurrentRequests} conversions run at
+ * once; a request that can't get a turn within {@code PERMIT_WAIT_MILLIS} is turned away with a
+ * 503. Uploads larger than {@code maxUploadBytes}, and archives whose files add up to more than
+ * {@code maxDecompressedBytes}, are refused with a 413. Converters come from a factory, so they
+ * can share one pre-loaded account ID map.
+ */
+public class ConversionServer {
+  private static Logger logger = Logger.getLogger(ConversionServer.class.getName());
+
+  public static final int DEFAULT_PORT = 8426;
+  public static final long DEFAULT_MAX_UPLOAD_BYTES = 256L * 1024 * 1024;
+  public static final long DEFAULT_MAX_DECOMPRESSED_BYTES = 1024L * 1024 * 1024;
+
+  private static final long PERMIT_WAIT_MILLIS = 1000;
+  private static final String UPLOAD_PREFIX = "PJR-upload-";
+  private static final String APPEND_PREFIX = "IIF-append-";
+
+  private InetSocketAddress address;
+  private PjrFolderWatcher.ConverterFactory converterFactory;
+  private File outputFile;
+  private int maxConcurrentRequests = Runtime.getRuntime().availableProcessors() * 4;
+  private long maxUploadBytes = DEFAULT_MAX_UPLOAD_BYTES;
+  private long maxDecompressedBytes = DEFAULT_MAX_DECOMPRESSED_BYTES;
+  private long rolloverBytes;
+
+  private HttpServer httpServer;
+  private ExecutorService executor;
+  private boolean virtualThreads;
+  private Semaphore permits;
+  private File uploadDirectory;
+  // Appends to the output file are made one request at a time. Waiting for a monitor while it
+  // syncs would pin a virtual thread to its carrier, which a ReentrantLock doesn't.
+  private ReentrantLock outputLock = new ReentrantLock();
+  // The timestamped file being appended to when rolling over, guarded by outputLock.
+  private File rolloverFile;
+
+  private AtomicInteger activeRequests = new AtomicInteger();
+  private AtomicLong requestCount = new AtomicLong();
+  private AtomicLong rejectedCount = new AtomicLong();
+  private AtomicLong failedCount = new AtomicLong();
+  private LatencyHistogram latencies = new LatencyHistogram();
+
+  /**
+   * @param outputFile where {@code ?output=append} requests append, or null to refuse them
+   */
+  public ConversionServer(InetSocketAddress address,
+      PjrFolderWatcher.ConverterFactory converterFactory, File outputFile) {
+    this.address = address;
+    this.converterFactory = converterFactory;
+    this.outputFile = outputFile;
+  }
+
+  public int getMaxConcurrentRequests() {
+    return maxConcurrentRequests;
+  }
+
+  public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+    this.maxConcurrentRequests = Math.max(1, maxConcurrentRequests);
+  }
+
+  public long getMaxUploadBytes() {
+    return maxUploadBytes;
+  }
+
+  /**
+   * Sets the largest request body that is accepted. Each upload is kept in a temporary file
+   * while it's converted.
+   */
+  public void setMaxUploadBytes(long maxUploadBytes) {
+    this.maxUploadBytes = Math.max(1, maxUploadBytes);
+  }
+
+  public long getRolloverBytes() {
+    return rolloverBytes;
+  }
+
+  /**
+   * Sets how large an output file may grow before appends move on to a new one, named like
+   * {@link PjrFolderWatcher}'s rollover files. Zero, the default, appends to the output file
+   * itself.
+   */
+  public void setRolloverBytes(long rolloverBytes) {
+    this.rolloverBytes = Math.max(0, rolloverBytes);
+  }
+
+  public long getMaxDecompressedBytes() {
+    return maxDecompressedBytes;
+  }
+
+  /**
+   * Sets the most that the files in an uploaded archive may add up to once decompressed. Archives
+   * are read through once to check before they're converted.
+   */
+  public void setMaxDecompressedBytes(long maxDecompressedBytes) {
+    this.maxDecompressedBytes = Math.max(1, maxDecompressedBytes);
+  }
+
+  /**
+   * Returns the address the server is listening on, which has the actual port if it was started
+   * on port 0.
+   */
+  public InetSocketAddress getAddress() {
+    return httpServer == null ? address : httpServer.getAddress();
+  }
+
+  public boolean isVirtualThreads() {
+    return virtualThreads;
+  }
+
+  public void start() throws IOException {
+    uploadDirectory = Files.createTempDirectory("pjr2iif-uploads").toFile();
+    permits = new Semaphore(maxConcurrentRequests);
+    executor = newRequestExecutor();
+    httpServer = HttpServer.create(address, 0);
+    httpServer.setExecutor(executor);
+    httpServer.createContext("/convert", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        handleConvert(exchange);
+      }
+    });
+    httpServer.createContext("/status", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        handleStatus(exchange);
+      }
+    });
+    httpServer.start();
+    logger.info("Listening on " + getAddress() + " with " +
+        (virtualThreads ? "virtual" : "platform") + " threads.");
+  }
+
+  /**
+   * Stops taking requests, and gives the ones in progress up to the delay to finish.
+   */
+  public void stop(int delaySeconds) {
+    httpServer.stop(delaySeconds);
+    executor.shutdown();
+    File[] uploads = uploadDirectory.listFiles();
+    if (uploads != null) {
+      for (File upload : uploads) {
+        upload.delete();
+      }
+    }
+    uploadDirectory.delete();
+  }
+
+  /**
+   * Returns the counts and latency percentiles reported by {@code /status}, as JSON.
+   */
+  public String getStatus() {
+    StringBuilder json = new StringBuilder("{\n");
+    json.append("  \"virtualThreads\": ").append(virtualThreads).append(",\n");
+    json.append("  \"maxConcurrentRequests\": ").append(maxConcurrentRequests).append(",\n");
+    json.append("  \"activeRequests\": ").append(activeRequests.get()).append(",\n");
+    json.append("  \"requests\": ").append(requestCount.get()).append(",\n");
+    json.append("  \"rejected\": ").append(rejectedCount.get()).append(",\n");
+    json.append("  \"failed\": ").append(failedCount.get()).append(",\n");
+    json.append("  \"latency\": {")
+        .append("\"count\": ").append(latencies.getCount())
+        .append(", \"meanMillis\": ").append(toMillis(latencies.getMeanNanos()))
+        .append(", \"p50Millis\": ").append(toMillis(latencies.getPercentileNanos(0.5)))
+        .append(", \"p90Millis\": ").append(toMillis(latencies.getPercentileNanos(0.9)))
+        .append(", \"p99Millis\": ").append(toMillis(latencies.getPercentileNanos(0.99)))
+        .append(", \"maxMillis\": ").append(toMillis(latencies.getMaxNanos()))
+        .append("}\n}\n");
+    return json.toString();
+  }
+
+  private void handleStatus(HttpExchange exchange) throws IOException {
+    try {
+      if (!"GET".equals(exchange.getRequestMethod())) {
+        sendText(exchange, 405, "Use GET.\n");
+        return;
+      }
+      exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+      sendText(exchange, 200, getStatus());
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void handleConvert(HttpExchange exchange) throws IOException {
+    long startNanos = System.nanoTime();
+    requestCount.incrementAndGet();
+    try {
+      if (!"POST".equals(exchange.getRequestMethod())) {
+        sendText(exchange, 405, "Use POST.\n");
+        return;
+      }
+      boolean acquired;
+      try {
+        acquired = permits.tryAcquire(PERMIT_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      if (!acquired) {
+        rejectedCount.incrementAndGet();
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        sendText(exchange, 503, "Too many conversions in progress.\n");
+        return;
+      }
+
+      activeRequests.incrementAndGet();
+      try {
+        convert(exchange);
+      } finally {
+        activeRequests.decrementAndGet();
+        permits.release();
+      }
+    } finally {
+      latencies.record(System.nanoTime() - startNanos);
+      exchange.close();
+    }
+  }
+
+  private void convert(HttpExchange exchange) throws IOException {
+    Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+    boolean append = "append".equals(parameters.get("output"));
+    boolean ignoreNegativeTransactions =
+        Boolean.parseBoolean(parameters.get("ignore_negative_transactions"));
+    if (append && outputFile == null) {
+      sendText(exchange, 400, "This server has no output file to append to.\n");
+      return;
+    }
+
+    String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+    if (contentLength != null && isTooLarge(contentLength)) {
+      sendText(exchange, 413, "Uploads are limited to " + maxUploadBytes + " bytes.\n");
+      return;
+    }
+
+    String suffix = getUploadSuffix(exchange.getRequestHeaders().getFirst("Content-Type"));
+    File upload = File.createTempFile(UPLOAD_PREFIX, suffix, uploadDirectory);
+    ResponseOutputStream responseOutputStream = new ResponseOutputStream(exchange);
+    try {
+      // Chunked uploads don't say how long they are, so the copy stops at the limit too.
+      if (!receiveUpload(exchange.getRequestBody(), upload)) {
+        sendText(exchange, 413, "Uploads are limited to " + maxUploadBytes + " bytes.\n");
+        return;
+      }
+      if (ArchiveReader.isArchive(upload.getName()) && isTooLargeDecompressed(upload)) {
+        sendText(exchange, 413, "Archives are limited to " + maxDecompressedBytes +
+            " bytes once decompressed.\n");
+        return;
+      }
+
+      Pjr2IifConverter pjr2IifConverter =
+          converterFactory.create(Collections.singletonList(upload));
+      if (!ArchiveReader.isArchive(upload.getName())) {
+        // A single PJR has nothing to spread over threads.
+        pjr2IifConverter.setThreadCount(1);
+      }
+      if (append) {
+        appendToOutput(exchange, pjr2IifConverter, ignoreNegativeTransactions);
+      } else {
+        exchange.getResponseHeaders().set("Content-Type",
+            "text/plain; charset=" + Charset.defaultCharset().name());
+        pjr2IifConverter.convert(responseOutputStream, ignoreNegativeTransactions);
+        responseOutputStream.close();
+      }
+    } catch (Exception e) {
+      failedCount.incrementAndGet();
+      logger.log(Level.INFO, "Unable to convert an upload", e);
+      if (!responseOutputStream.isStarted()) {
+        sendText(exchange, 422, "Conversion failed: " + e + "\n");
+      }
+      // Otherwise the IIF was already on its way, and the cut-off response is all we can do.
+    } finally {
+      upload.delete();
+    }
+  }
+
+  // Returns false, having stopped reading, if the body is larger than the limit.
+  private boolean receiveUpload(InputStream requestBody, File upload) throws IOException {
+    try {
+      OutputStream outputStream = new FileOutputStream(upload);
+      try {
+        byte[] buffer = new byte[64 * 1024];
+        long received = 0;
+        int read;
+        while ((read = requestBody.read(buffer)) != -1) {
+          received += read;
+          if (received > maxUploadBytes) {
+            return false;
+          }
+          outputStream.write(buffer, 0, read);
+        }
+      } finally {
+        outputStream.close();
+      }
+    } finally {
+      requestBody.close();
+    }
+    return true;
+  }
+
+  // Stops reading as soon as the archive's files add up to more than the limit.
+  private boolean isTooLargeDecompressed(File archive) throws IOException {
+    ArchiveReader archiveReader = ArchiveReader.open(archive);
+    try {
+      byte[] buffer = new byte[64 * 1024];
+      long decompressed = 0;
+      while (archiveReader.nextEntry() != null) {
+        InputStream inputStream = archiveReader.getInputStream();
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+          decompressed += read;
+          if (decompressed > maxDecompressedBytes) {
+            return true;
+          }
+        }
+      }
+    } finally {
+      archiveReader.close();
+    }
+    return false;
+  }
+
+  private boolean isTooLarge(String contentLength) {
+    try {
+      return Long.parseLong(contentLength.trim()) > maxUploadBytes;
+    } catch (NumberFormatException e) {
+      // Left for the copy to find out.
+      return false;
+    }
+  }
+
+  private void appendToOutput(HttpExchange exchange, Pjr2IifConverter pjr2IifConverter,
+      boolean ignoreNegativeTransactions) throws Exception {
+    // Converted into a temporary file before taking the lock, so appends only wait for each
+    // other's copies, and a large upload's IIF never has to fit in memory.
+    pjr2IifConverter.setWriteHeader(false);
+    File iifFile = File.createTempFile(APPEND_PREFIX, ".iif", uploadDirectory);
+    try {
+      Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(iifFile)));
+      try {
+        pjr2IifConverter.convert(writer, ignoreNegativeTransactions);
+      } finally {
+        writer.close();
+      }
+      outputLock.lock();
+      try {
+        append(getAppendFile(), iifFile, pjr2IifConverter.getAggregation() != Aggregation.NONE);
+      } finally {
+        outputLock.unlock();
+      }
+    } finally {
+      iifFile.delete();
+    }
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+    sendText(exchange, 200, "{\"pjrs\": " + pjr2IifConverter.getFileCount() +
+        ", \"transactions\": " + pjr2IifConverter.getTransactionCount() + "}\n");
+  }
+
+  // Must be called holding outputLock.
+  private File getAppendFile() {
+    if (rolloverBytes == 0) {
+      return outputFile;
+    }
+    if (rolloverFile == null || rolloverFile.length() >= rolloverBytes) {
+      rolloverFile = PjrFolderWatcher.getRolloverFile(outputFile);
+    }
+    return rolloverFile;
+  }
+
+  // Appends the IIF and syncs it. If that fails, the output is cut back to its old length so
+  // that no half of an upload is left in it.
+  private void append(File appendFile, File iifFile, boolean writeMemos) throws IOException {
+    FileOutputStream outputStream = new FileOutputStream(appendFile, true);
+    try {
+      long originalLength = outputStream.getChannel().size();
+      try {
+        if (originalLength == 0) {
+          Writer writer = new OutputStreamWriter(outputStream);
+          IifWriter iifWriter = new IifWriter(writer);
+          iifWriter.setWriteMemos(writeMemos);
+          iifWriter.writeHeader();
+          writer.flush();
+        }
+        Files.copy(iifFile.toPath(), outputStream);
+        outputStream.getFD().sync();
+      } catch (IOException e) {
+        outputStream.getChannel().truncate(originalLength);
+        throw e;
+      }
+    } finally {
+      outputStream.close();
+    }
+  }
+
+  private static String getUploadSuffix(String contentType) {
+    if (contentType != null) {
+      String mediaType = contentType.split(";", 2)[0].trim().toLowerCase(Locale.ROOT);
+      if (mediaType.equals("application/zip")) {
+        return ".zip";
+      }
+      if (mediaType.equals("application/gzip") || mediaType.equals("application/x-gzip") ||
+          mediaType.equals("application/x-tar+gzip")) {
+        return ".tar.gz";
+      }
+    }
+    return ".xml";
+  }
+
+  private static Map<String, String> parseQuery(String rawQuery) throws IOException {
+    Map<String, String> parameters = new HashMap<String, String>();
+    if (rawQuery == null) {
+      return parameters;
+    }
+    for (String parameter : rawQuery.split("&")) {
+      int indexOfEquals = parameter.indexOf('=');
+      String name = indexOfEquals == -1 ? parameter : parameter.substring(0, indexOfEquals);
+      String value = indexOfEquals == -1 ? "true" : parameter.substring(indexOfEquals + 1);
+      parameters.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+    }
+    return parameters;
+  }
+
+  private static void sendText(HttpExchange exchange, int status, String text)
+      throws IOException {
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    if (!exchange.getResponseHeaders().containsKey("Content-Type")) {
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    }
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream responseBody = exchange.getResponseBody();
+    responseBody.write(bytes);
+    responseBody.close();
+  }
+
+  private static String toMillis(long nanos) {
+    return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+  }
+
+  private ExecutorService newRequestExecutor() {
+    try {
+      // Looked up by name so the converter still builds and runs on Java 8.
+      Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      ExecutorService virtualThreadExecutor = (ExecutorService) method.invoke(null);
+      virtualThreads = true;
+      return virtualThreadExecutor;
+    } catch (ReflectiveOperationException e) {
+      virtualThreads = false;
+      return Executors.newCachedThreadPool(new ThreadFactory() {
+        private AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "pjr-server-" + threadNumber.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+  }
+
+  /**
+   * Sends the response headers on the first write, so that a conversion that fails before
+   * writing anything can still answer with an error status.
+   */
+  private static class ResponseOutputStream extends FilterOutputStream {
+    private HttpExchange exchange;
+    private boolean started;
+
+    public ResponseOutputStream(HttpExchange exchange) {
+      super(null);
+      this.exchange = exchange;
+    }
+
+    public boolean isStarted() {
+      return started;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      start();
+      out.write(b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      start();
+      out.write(bytes, offset, length);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      start();
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      start();
+      out.close();
+    }
+
+    private void start() throws IOException {
+      if (!started) {
+        started = true;
+        // A length of 0 means chunked, since the size isn't known until the end.
+        exchange.sendResponseHeaders(200, 0);
+        out = exchange.getResponseBody();
+      }
+    }
+  }
+}
@@ -0,0 +1,43 @@
+package com.smike.pjr2iifconverter;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * Builds a complete DOM for each document and then looks up each tag.
+ */
+public class DomPjrParser implements PjrParser {
+  public DomPjrParser() throws ParserConfigurationException {
+    // Fails here rather than on the first document if the parser can't be set up.
+    XmlParserFactory.returnDocumentBuilder(XmlParserFactory.borrowDocumentBuilder());
+  }
+
+  @Override
+  public PjrRecord parse(InputStream inputStream, String systemId)
+      throws IOException, SAXException {
+    Document document = XmlParserFactory.parse(inputStream, systemId);
+
+    return new PjrRecord(getFirstValueByTagName(RECEIPT_DATE_TAG, document),
+                         getFirstValueByTagName(TRANSACTION_ID_TAG, document),
+                         getFirstValueByTagName(TRANSACTION_TOTAL_NET_AMOUNT_TAG, document),
+                         getFirstValueByTagName(ACCOUNT_ID_TAG, document));
+  }
+
+  private String getFirstValueByTagName(String tagName, Document document) {
+    NodeList nodeList = document.getElementsByTagName(tagName);
+
+    if (nodeList.getLength() == 0) {
+      return null;
+    }
+
+    Node node = nodeList.item(0);
+    return node.getTextContent();
+  }
+}
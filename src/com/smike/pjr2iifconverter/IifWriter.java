@@ -0,0 +1,211 @@
+package com.smike.pjr2iifconverter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes IIF transactions to a {@link Writer} as they are produced. Wrap unbuffered writers in a
+ * {@link java.io.BufferedWriter}, since each transaction is written with several small writes.
+ */
+public class IifWriter implements TransactionSink, Closeable {
+  private static final String IIF_HEADER =
+      "!TRNS\tTRNSID\tTRNSTYPE\tDATE\tDOCNUM\tACCNT\tNAME\tAMOUNT\tPAID\n" +
+      "!SPL\tSPLID\tTRNSTYPE\tDATE\tACCNT\tAMOUNT\tCLEAR\n" +
+      "!ENDTRNS\n";
+  private static final String IIF_MEMO_HEADER =
+      "!TRNS\tTRNSID\tTRNSTYPE\tDATE\tDOCNUM\tACCNT\tNAME\tAMOUNT\tPAID\tMEMO\n" +
+      "!SPL\tSPLID\tTRNSTYPE\tDATE\tACCNT\tAMOUNT\tCLEAR\n" +
+      "!ENDTRNS\n";
+  // Each transaction is written in this layout, with MM/dd/yy dates and two decimal amounts:
+  // "\nTRNS\t\tINVOICE\t<DATE>\t<TRNSID>\tAccounts Receivable\t<NAME>\t<AMOUNT>\tN\n" +
+  // "SPL\t\tINVOICE\t<DATE>\tSales:Local Account Sales\t-<AMOUNT>\tN\n" +
+  // "ENDTRNS\n"
+  // With memos, "\t<MEMO>" follows the TRNS line's "\tN".
+  private static final char[] TRNS_PREFIX = "\nTRNS\t\tINVOICE\t".toCharArray();
+  private static final char[] TRNS_ACCOUNT = "\tAccounts Receivable\t".toCharArray();
+  private static final char[] TRNS_PAID = "\tN".toCharArray();
+  private static final char[] SPL_PREFIX = "\nSPL\t\tINVOICE\t".toCharArray();
+  private static final char[] SPL_ACCOUNT = "\tSales:Local Account Sales\t-".toCharArray();
+  private static final char[] SPL_SUFFIX = "\tN\nENDTRNS\n".toCharArray();
+  // MM/dd/yy, and the longest amount, "-92233720368547758.08".
+  private static final int DATE_CHARS = 8;
+  private static final int MAX_AMOUNT_CHARS = 21;
+  // Everything but the strings, including the three tabs written one at a time.
+  private static final int MAX_FIXED_CHARS = TRNS_PREFIX.length + TRNS_ACCOUNT.length +
+      TRNS_PAID.length + SPL_PREFIX.length + SPL_ACCOUNT.length + SPL_SUFFIX.length +
+      2 * DATE_CHARS + 2 * MAX_AMOUNT_CHARS + 3;
+
+  private Writer writer;
+  // Reused for every transaction so that encoding one doesn't create any garbage.
+  private char[] buffer = new char[256];
+  private int length;
+  private long charCount;
+
+  private boolean writeMemos;
+  private ConversionMetrics metrics;
+
+  public IifWriter(Writer writer) {
+    this.writer = writer;
+  }
+
+  /**
+   * Sets where to record format and write times, or null to not record them.
+   */
+  public void setMetrics(ConversionMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  public boolean isWriteMemos() {
+    return writeMemos;
+  }
+
+  /**
+   * Sets whether the header and every TRNS line have a MEMO column. Transactions written without
+   * a memo then have an empty one.
+   */
+  public void setWriteMemos(boolean writeMemos) {
+    this.writeMemos = writeMemos;
+  }
+
+  /**
+   * Returns how many characters have been written so far, header included.
+   */
+  public long getCharCount() {
+    return charCount;
+  }
+
+  public void writeHeader() throws IOException {
+    String header = writeMemos ? IIF_MEMO_HEADER : IIF_HEADER;
+    writer.write(header);
+    charCount += header.length();
+  }
+
+  public void write(TransactionData transactionData) throws IOException {
+    write(transactionData.getReceiptEpochDay(), transactionData.getTransactionId(),
+          transactionData.getAmountCents(), transactionData.getAccount());
+  }
+
+  public void write(int receiptEpochDay, String transactionId, long amountCents, String account)
+      throws IOException {
+    write(receiptEpochDay, transactionId, amountCents, account, null);
+  }
+
+  /**
+   * Writes a transaction with a memo, which is left out unless memos are being written.
+   */
+  @Override
+  public void write(int receiptEpochDay, String transactionId, long amountCents, String account,
+      String memo) throws IOException {
+    if (metrics == null) {
+      encode(receiptEpochDay, transactionId, amountCents, account, memo);
+      writer.write(buffer, 0, length);
+      charCount += length;
+      return;
+    }
+
+    long startNanos = System.nanoTime();
+    encode(receiptEpochDay, transactionId, amountCents, account, memo);
+    long encodedNanos = System.nanoTime();
+    writer.write(buffer, 0, length);
+    charCount += length;
+    metrics.recordStage(ConversionMetrics.Stage.FORMAT, encodedNanos - startNanos);
+    metrics.recordStage(ConversionMetrics.Stage.WRITE, System.nanoTime() - encodedNanos);
+  }
+
+  private void encode(int receiptEpochDay, String transactionId, long amountCents,
+      String account, String memo) {
+    transactionId = String.valueOf(transactionId);
+    account = String.valueOf(account);
+    if (!writeMemos || memo == null) {
+      memo = "";
+    }
+    int yearMonthDate = PjrFieldParser.toYearMonthDate(receiptEpochDay);
+
+    length = 0;
+    ensureCapacity(MAX_FIXED_CHARS + transactionId.length() + account.length() + memo.length());
+    append(TRNS_PREFIX);
+    appendDate(yearMonthDate);
+    buffer[length++] = '\t';
+    append(transactionId);
+    append(TRNS_ACCOUNT);
+    append(account);
+    buffer[length++] = '\t';
+    appendAmount(amountCents);
+    append(TRNS_PAID);
+    if (writeMemos) {
+      buffer[length++] = '\t';
+      append(memo);
+    }
+    append(SPL_PREFIX);
+    appendDate(yearMonthDate);
+    append(SPL_ACCOUNT);
+    appendAmount(amountCents);
+    append(SPL_SUFFIX);
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (buffer.length < capacity) {
+      buffer = new char[Math.max(capacity, buffer.length * 2)];
+    }
+  }
+
+  private void append(char[] chars) {
+    System.arraycopy(chars, 0, buffer, length, chars.length);
+    length += chars.length;
+  }
+
+  private void append(String string) {
+    string.getChars(0, string.length(), buffer, length);
+    length += string.length();
+  }
+
+  // Writes MM/dd/yy, the same as "%tD".
+  private void appendDate(int yearMonthDate) {
+    appendTwoDigits(yearMonthDate / 100 % 100);
+    buffer[length++] = '/';
+    appendTwoDigits(yearMonthDate % 100);
+    buffer[length++] = '/';
+    appendTwoDigits(Math.floorMod(yearMonthDate / 10000, 100));
+  }
+
+  private void appendTwoDigits(int value) {
+    buffer[length++] = (char) ('0' + value / 10);
+    buffer[length++] = (char) ('0' + value % 10);
+  }
+
+  // Writes the amount with exactly two decimals, the same as "%.2f".
+  private void appendAmount(long amountCents) {
+    if (amountCents < 0) {
+      buffer[length++] = '-';
+    }
+    // Negate the other way around so that Long.MIN_VALUE doesn't overflow.
+    long remaining = amountCents < 0 ? amountCents : -amountCents;
+    int start = length;
+    int digits = 0;
+    do {
+      buffer[length++] = (char) ('0' - remaining % 10);
+      remaining /= 10;
+      digits++;
+      if (digits == 2) {
+        buffer[length++] = '.';
+      }
+    } while (remaining != 0 || digits < 3);
+    // The digits were written least significant first.
+    for (int i = start, j = length - 1; i < j; i++, j--) {
+      char c = buffer[i];
+      buffer[i] = buffer[j];
+      buffer[j] = c;
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    writer.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    writer.close();
+  }
+}
@@ -0,0 +1,97 @@
+package com.smike.pjr2iifconverter;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in nanoseconds. Buckets grow exponentially with four
+ * buckets per power of two, so percentiles are accurate to within about 20% at any scale.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 2;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  private AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+  private AtomicLong count = new AtomicLong();
+  private AtomicLong totalNanos = new AtomicLong();
+  private AtomicLong maxNanos = new AtomicLong();
+
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    buckets.incrementAndGet(getBucket(nanos));
+    count.incrementAndGet();
+    totalNanos.addAndGet(nanos);
+    long max;
+    while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+      // Someone else raised the maximum, so try again against theirs.
+    }
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getTotalNanos() {
+    return totalNanos.get();
+  }
+
+  public long getMaxNanos() {
+    return maxNanos.get();
+  }
+
+  public long getMeanNanos() {
+    long count = getCount();
+    return count == 0 ? 0 : getTotalNanos() / count;
+  }
+
+  /**
+   * Returns an upper bound on the duration that the given fraction of recordings didn't exceed.
+   *
+   * @param fraction between 0 and 1, e.g. 0.99 for the 99th percentile.
+   */
+  public long getPercentileNanos(double fraction) {
+    long count = getCount();
+    if (count == 0) {
+      return 0;
+    }
+    long target = (long) Math.ceil(fraction * count);
+    long seen = 0;
+    for (int bucket = 0; bucket < buckets.length(); bucket++) {
+      seen += buckets.get(bucket);
+      if (seen >= Math.max(1, target)) {
+        return Math.min(getBucketUpperBound(bucket), getMaxNanos());
+      }
+    }
+    return getMaxNanos();
+  }
+
+  public void reset() {
+    for (int bucket = 0; bucket < buckets.length(); bucket++) {
+      buckets.set(bucket, 0);
+    }
+    count.set(0);
+    totalNanos.set(0);
+    maxNanos.set(0);
+  }
+
+  private static int getBucket(long nanos) {
+    if (nanos < SUB_BUCKETS) {
+      return (int) nanos;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+    int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  private static long getBucketUpperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    long subBucket = bucket % SUB_BUCKETS;
+    long lowerBound = (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+  }
+}
@@ -11,12 +11,18 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
-import java.io.FilenameFilter;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -27,11 +33,14 @@ import javax.swing.JButton;
 import javax.swing.JCheckBox;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
+import javax.swing.JLabel;
 import javax.swing.JList;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextField;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import javax.swing.filechooser.FileFilter;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
@@ -40,38 +49,62 @@ public class MainFrame extends JFrame {
   private static Logger logger = Logger.getLogger(MainFrame.class.getName());
 
   private static final String CONFIG_LOCATION = "pjr2IifConverter.conf";
-
-  private static final FilenameFilter PJR_FILENAME_FILTER = new FilenameFilter() {
-    @Override
-    public boolean accept(File dir, String name) {
-      return name.endsWith(".xml") && name.startsWith("PJR");
-    }
-  };
+  private static final int PROGRESS_INTERVAL_MILLIS = 250;
+  // How many scanned files are handed to the list at a time.
+  private static final int SCAN_CHUNK_SIZE = 1000;
+  private static final int MAX_FAILURES_SHOWN = 10;
 
   private static final FileFilter PJR_FILE_FILTER = new FileFilter() {
     @Override
     public String getDescription() {
-      return "PJR Files";
+      return "PJR Files and Archives";
     }
 
     @Override
     public boolean accept(File file) {
       return file.isDirectory() ||
-          PJR_FILENAME_FILTER.accept(file.getParentFile(), file.getName());
+          Pjr2IifConverter.PJR_INPUT_FILENAME_FILTER.accept(file.getParentFile(), file.getName());
     }
   };
 
   private Properties properties;
 
   private File accountIdMapFile;
-  private List<File> pjrFiles = new LinkedList<File>();
+  private PjrFileListModel pjrFileListModel = new PjrFileListModel();
+  // The directory the PJR files were listed from, or null if they were chosen one by one.
+  private File pjrDirectory;
   private File iifFile;
+  private ParserEngine parserEngine = ParserEngine.DOM;
+  private ReadMode readMode = ReadMode.STREAM;
+  private String transactionTag;
+  private Aggregation aggregation = Aggregation.NONE;
+  private int threadCount = Runtime.getRuntime().availableProcessors();
+  // Zero for no limit.
+  private int partitionTransactions;
+  private int partitionBytes;
+  private boolean partitionByDate;
+  private boolean sortOutput;
+  // Zero for the default.
+  private int sortMemoryMegabytes;
+  private File journalLocation;
+  // Where converted PJR files are moved, or null to delete them or leave them be.
+  private File archiveLocation;
+  private File recordCacheLocation;
 
   private JTextField accountIdMapTextField;
   private JTextField iifFileTextField;
   private JList<File> pjrFilesList;
+  private JLabel pjrFilesSummaryLabel;
   private JCheckBox deletePjrFilesCheckBox;
   private JCheckBox ignoreNegativeTransactionsCheckBox;
+  private JLabel progressLabel;
+  private JButton convertButton;
+  private JButton cancelButton;
+
+  // The conversion running in the background, if any.
+  private ConversionWorker conversionWorker;
+  // The directory scan running in the background, if any.
+  private DirectoryScanWorker directoryScanWorker;
 
   public MainFrame() {
     super("PJR to IIF Converter");
@@ -119,8 +152,13 @@ public class MainFrame extends JFrame {
         iifPanel.add(iifButton, gridBagConstraints);
       }
 
-      pjrFilesList = new JList<File>();
+      pjrFilesList = new JList<File>(pjrFileListModel);
       pjrFilesList.setMinimumSize(new Dimension(2000, 200));
+      // With a prototype, every row has the same size and only the visible rows are rendered,
+      // however many files there are.
+      pjrFilesList.setPrototypeCellValue(
+          new File("PJR_0000000000_0000000000_00000000_000000.xml").getAbsoluteFile());
+      pjrFilesSummaryLabel = new JLabel("No PJR files chosen.");
       JButton pjrButton = new JButton("Choose the input PJR files...");
       pjrButton.addActionListener(new ActionListener() {
         @Override
@@ -138,6 +176,8 @@ public class MainFrame extends JFrame {
         gridBagConstraints.weightx = 1;
         gridBagConstraints.gridy = 0;
         pjrPanel.add(new JScrollPane(pjrFilesList), gridBagConstraints);
+        gridBagConstraints.gridy++;
+        pjrPanel.add(pjrFilesSummaryLabel, gridBagConstraints);
         gridBagConstraints.fill = GridBagConstraints.NONE;
         gridBagConstraints.weightx = 0;
         gridBagConstraints.gridy++;
@@ -151,16 +191,27 @@ public class MainFrame extends JFrame {
 
       JPanel actionPanel = new JPanel(); {
         actionPanel.setLayout(new BoxLayout(actionPanel, BoxLayout.X_AXIS));
-        JButton convertButton = new JButton("Convert");
+        progressLabel = new JLabel(" ");
+        convertButton = new JButton("Convert");
         convertButton.addActionListener(new ActionListener() {
           @Override
           public void actionPerformed(ActionEvent arg0) {
             onConvertAction();
           }
         });
+        cancelButton = new JButton("Cancel");
+        cancelButton.setEnabled(false);
+        cancelButton.addActionListener(new ActionListener() {
+          @Override
+          public void actionPerformed(ActionEvent arg0) {
+            onCancelAction();
+          }
+        });
 
+        actionPanel.add(progressLabel);
         actionPanel.add(Box.createHorizontalGlue());
         actionPanel.add(convertButton);
+        actionPanel.add(cancelButton);
       }
 
       mainPanel.add(accountIdMapPanel);
@@ -201,7 +252,7 @@ public class MainFrame extends JFrame {
     if (pjrLocation != null) {
       File pjrLocationFile = new File(pjrLocation);
       if (pjrLocationFile.isDirectory()) {
-        setPjrFiles(pjrLocationFile.listFiles(PJR_FILENAME_FILTER));
+        scanPjrDirectory(pjrLocationFile);
       } else {
         setPjrFiles(new File[] { pjrLocationFile });
       }
@@ -218,55 +269,360 @@ public class MainFrame extends JFrame {
     if (ignoreNegativeTransactionsString != null) {
       setIgnoreNegativeTransactions(Boolean.parseBoolean(ignoreNegativeTransactionsString));
     }
+
+    String parserEngineString = properties.getProperty(SettingsKey.PARSER_ENGINE.getKey());
+    if (parserEngineString != null) {
+      ParserEngine parserEngine = ParserEngine.getEnum(parserEngineString);
+      if (parserEngine == null) {
+        logger.warning("Unknown parser engine " + parserEngineString + ". Using " +
+            this.parserEngine + ".");
+      } else {
+        this.parserEngine = parserEngine;
+      }
+    }
+
+    String readModeString = properties.getProperty(SettingsKey.READ_MODE.getKey());
+    if (readModeString != null) {
+      ReadMode readMode = ReadMode.getEnum(readModeString);
+      if (readMode == null) {
+        logger.warning("Unknown read mode " + readModeString + ". Using " + this.readMode + ".");
+      } else {
+        this.readMode = readMode;
+      }
+    }
+
+    String aggregationString = properties.getProperty(SettingsKey.AGGREGATION.getKey());
+    if (aggregationString != null) {
+      Aggregation aggregation = Aggregation.getEnum(aggregationString);
+      if (aggregation == null) {
+        logger.warning("Unknown aggregation " + aggregationString + ". Using " +
+            this.aggregation + ".");
+      } else {
+        this.aggregation = aggregation;
+      }
+    }
+
+    transactionTag = properties.getProperty(SettingsKey.TRANSACTION_TAG.getKey());
+    if (transactionTag == null && Boolean.parseBoolean(
+            properties.getProperty(SettingsKey.MULTI_TRANSACTION.getKey()))) {
+      transactionTag = MultiTransactionPjrParser.DEFAULT_TRANSACTION_TAG;
+    }
+
+    String journalLocationString = properties.getProperty(SettingsKey.JOURNAL_LOCATION.getKey());
+    if (journalLocationString != null) {
+      journalLocation = new File(journalLocationString);
+    }
+
+    String archiveLocationString = properties.getProperty(SettingsKey.ARCHIVE_LOCATION.getKey());
+    if (archiveLocationString != null) {
+      archiveLocation = new File(archiveLocationString);
+    }
+
+    String recordCacheLocationString =
+        properties.getProperty(SettingsKey.RECORD_CACHE_FILE.getKey());
+    if (recordCacheLocationString != null) {
+      recordCacheLocation = new File(recordCacheLocationString);
+    }
+
+    String threadCountString = properties.getProperty(SettingsKey.THREAD_COUNT.getKey());
+    if (threadCountString != null) {
+      try {
+        threadCount = Integer.parseInt(threadCountString.trim());
+      } catch (NumberFormatException e) {
+        logger.warning("Invalid thread count " + threadCountString + ". Using " + threadCount +
+            ".");
+      }
+    }
+
+    partitionTransactions = getIntProperty(SettingsKey.PARTITION_TRANSACTIONS);
+    partitionBytes = getIntProperty(SettingsKey.PARTITION_BYTES);
+    partitionByDate =
+        Boolean.parseBoolean(properties.getProperty(SettingsKey.PARTITION_BY_DATE.getKey()));
+    sortOutput = Boolean.parseBoolean(properties.getProperty(SettingsKey.SORT_OUTPUT.getKey()));
+    sortMemoryMegabytes = getIntProperty(SettingsKey.SORT_MEMORY_MB);
+  }
+
+  // Returns 0 if the property isn't set or isn't a number.
+  private int getIntProperty(SettingsKey settingsKey) {
+    String value = properties.getProperty(settingsKey.getKey());
+    if (value == null) {
+      return 0;
+    }
+    try {
+      return Math.max(0, Integer.parseInt(value.trim()));
+    } catch (NumberFormatException e) {
+      logger.warning("Invalid " + settingsKey + " " + value + ". Ignoring it.");
+      return 0;
+    }
   }
 
   private void onConvertAction() {
+    File iifFile = getIifFile();
+    if (directoryScanWorker != null) {
+      JOptionPane.showMessageDialog(this, "Wait for the PJR folder to finish being listed.",
+                                    "Still listing PJR files", JOptionPane.WARNING_MESSAGE);
+      return;
+    }
+    List<File> pjrFiles = getPjrFiles();
+    if (iifFile == null || getAccountIdMapFile() == null || pjrFiles.isEmpty()) {
+      JOptionPane.showMessageDialog(this,
+          "Choose an account ID map file, an output IIF file and the PJR files to convert first.",
+          "Nothing to convert", JOptionPane.WARNING_MESSAGE);
+      return;
+    }
+    if (iifFile.exists()) {
+      String[] buttonTitles = { "Yes, overwrite the file", "No, cancel conversion" };
+      int response = JOptionPane.showOptionDialog(
+          this,
+          "The output file, " + iifFile.getName() +
+              ", already exists. Do you want to overwrite it?",
+          "Existing output file",
+          JOptionPane.YES_NO_OPTION,
+          JOptionPane.WARNING_MESSAGE,
+          null,
+          buttonTitles,
+          buttonTitles[1]);
+
+      if (response == 1) {
+        // 1 is the index of the "no" option. Cancel conversion.
+        return;
+      }
+    }
+
+    Pjr2IifConverter pjr2IifConverter =
+        new Pjr2IifConverter(getPjrFiles(), getAccountIdMapFile());
+    pjr2IifConverter.setParserEngine(parserEngine);
+    pjr2IifConverter.setReadMode(readMode);
+    pjr2IifConverter.setTransactionTag(transactionTag);
+    pjr2IifConverter.setAggregation(aggregation);
+    pjr2IifConverter.setSortOutput(sortOutput);
+    if (sortMemoryMegabytes > 0) {
+      pjr2IifConverter.setSortMemoryBytes(sortMemoryMegabytes * 1024L * 1024);
+    }
+    pjr2IifConverter.setThreadCount(threadCount);
+    pjr2IifConverter.setMetrics(new ConversionMetrics());
+
+    conversionWorker = new ConversionWorker(pjr2IifConverter, iifFile,
+                                            new ArrayList<File>(pjrFiles),
+                                            isIgnoreNegativeTransactions(), isDeletePjrFiles());
+    convertButton.setEnabled(false);
+    cancelButton.setEnabled(true);
+    progressLabel.setText("Loading the account ID map...");
+    conversionWorker.execute();
+  }
+
+  private void onCancelAction() {
+    if (conversionWorker != null) {
+      cancelButton.setEnabled(false);
+      progressLabel.setText("Cancelling...");
+      conversionWorker.cancelConversion();
+    }
+  }
+
+  private void onConversionDone(ConversionWorker worker) {
+    conversionWorker = null;
+    convertButton.setEnabled(true);
+    cancelButton.setEnabled(false);
+
     try {
-      File iifFile = getIifFile();
-      if (iifFile.exists()) {
-        String[] buttonTitles = { "Yes, overwrite the file", "No, cancel conversion" };
-        int response = JOptionPane.showOptionDialog(
-            this,
-            "The output file, " + iifFile.getName() +
-                ", already exists. Do you want to overwrite it?",
-            "Existing output file",
-            JOptionPane.YES_NO_OPTION,
-            JOptionPane.WARNING_MESSAGE,
-            null,
-            buttonTitles,
-            buttonTitles[1]);
-
-        if (response == 1) {
-          // 1 is the index of the "no" option. Cancel conversion.
-          return;
-        }
+      SourceCleaner.Result cleanupResult = worker.get();
+      progressLabel.setText(getProgressText(worker.getMetrics(), worker.getElapsedMillis()) +
+                            " Done.");
+      if (cleanupResult != null && !cleanupResult.isComplete()) {
+        showCleanupFailures(cleanupResult);
       }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof CancellationException) {
+        logger.info("Conversion to " + worker.getIifFile() + " cancelled.");
+        progressLabel.setText("Conversion cancelled. " + worker.getIifFile().getName() +
+                              " was not changed.");
+        return;
+      }
+      logger.log(Level.SEVERE, "Unable to convert PJRs to " + worker.getIifFile(), cause);
+      progressLabel.setText("Conversion failed.");
+      JOptionPane.showMessageDialog(this, "Unable to convert the PJR files:\n" + cause,
+                                    "Conversion failed", JOptionPane.ERROR_MESSAGE);
+    }
+  }
 
-      Pjr2IifConverter pjr2IifConverter =
-          new Pjr2IifConverter(getPjrFiles(), getAccountIdMapFile());
-      String output = pjr2IifConverter.convert(isIgnoreNegativeTransactions());
-      logger.fine("IIF:\n" + output);
+  private void showCleanupFailures(SourceCleaner.Result cleanupResult) {
+    StringBuilder message = new StringBuilder();
+    message.append("The IIF file was written, but ")
+        .append(cleanupResult.getFailures().size())
+        .append(" PJR files could not be cleaned up:\n");
+    int shown = 0;
+    for (Map.Entry<File, IOException> failure : cleanupResult.getFailures().entrySet()) {
+      if (shown++ == MAX_FAILURES_SHOWN) {
+        message.append("...");
+        break;
+      }
+      message.append(failure.getKey().getName()).append(": ").append(failure.getValue())
+          .append('\n');
+    }
+    JOptionPane.showMessageDialog(this, message.toString(), "PJR files left behind",
+                                  JOptionPane.WARNING_MESSAGE);
+  }
 
-      FileWriter fileWriter = new FileWriter(getIifFile());
-      fileWriter.write(output);
-      fileWriter.flush();
-      fileWriter.close();
+  private static String getProgressText(ConversionMetrics metrics, long elapsedMillis) {
+    long filesSeen = metrics.getFilesSeen();
+    long filesProcessed = metrics.getFilesProcessed();
+    double seconds = Math.max(elapsedMillis, 1) / 1000.0;
+    double filesPerSecond = filesProcessed / seconds;
+    StringBuilder text = new StringBuilder();
+    text.append(String.format(Locale.ROOT, "%d of %d files (%.1f files/s", filesProcessed,
+                              filesSeen, filesPerSecond));
+    if (filesProcessed < filesSeen && filesPerSecond > 0) {
+      long secondsLeft = (long) Math.ceil((filesSeen - filesProcessed) / filesPerSecond);
+      text.append(String.format(Locale.ROOT, ", about %d:%02d left", secondsLeft / 60,
+                                secondsLeft % 60));
+    }
+    text.append("). Skipped ")
+        .append(metrics.getSkipped(ConversionMetrics.SkipReason.UNKNOWN_ACCOUNT))
+        .append(" with unknown accounts, ")
+        .append(metrics.getSkipped(ConversionMetrics.SkipReason.MISSING_AMOUNT))
+        .append(" without amounts, ")
+        .append(metrics.getNegativeFiltered())
+        .append(" negative.");
+    return text.toString();
+  }
 
-      logger.info("Converted PJRs to " + getIifFile());
+  /**
+   * Converts in the background, writing to a temporary file next to the IIF file that only
+   * replaces it once the conversion has succeeded.
+   */
+  private class ConversionWorker extends SwingWorker<SourceCleaner.Result, Void> {
+    private Pjr2IifConverter pjr2IifConverter;
+    private File iifFile;
+    private List<File> pjrFiles;
+    private boolean ignoreNegativeTransactions;
+    private boolean deletePjrFiles;
+
+    private long startMillis = System.currentTimeMillis();
+    private Timer progressTimer;
+
+    public ConversionWorker(Pjr2IifConverter pjr2IifConverter, File iifFile, List<File> pjrFiles,
+                            boolean ignoreNegativeTransactions, boolean deletePjrFiles) {
+      this.pjr2IifConverter = pjr2IifConverter;
+      this.iifFile = iifFile;
+      this.pjrFiles = pjrFiles;
+      this.ignoreNegativeTransactions = ignoreNegativeTransactions;
+      this.deletePjrFiles = deletePjrFiles;
+
+      progressTimer = new Timer(PROGRESS_INTERVAL_MILLIS, new ActionListener() {
+        @Override
+        public void actionPerformed(ActionEvent arg0) {
+          if (getMetrics().getFilesSeen() > 0 && !pjr2IifConverter.isCancelled()) {
+            progressLabel.setText(getProgressText(getMetrics(), getElapsedMillis()));
+          }
+        }
+      });
+    }
+
+    public File getIifFile() {
+      return iifFile;
+    }
+
+    public ConversionMetrics getMetrics() {
+      return pjr2IifConverter.getMetrics();
+    }
+
+    public long getElapsedMillis() {
+      return System.currentTimeMillis() - startMillis;
+    }
+
+    /**
+     * Stops the conversion once the file being handled is done. Unlike {@link #cancel(boolean)},
+     * {@link #done()} isn't called until the temporary file has been cleaned up.
+     */
+    public void cancelConversion() {
+      pjr2IifConverter.cancel();
+    }
 
-      if (isDeletePjrFiles()) {
-        logger.info("Deleting converted PJR files.");
-        for (File pjrFile : pjrFiles) {
-          pjrFile.delete();
+    @Override
+    public SourceCleaner.Result doInBackground() throws Exception {
+      progressTimer.start();
+      ProcessedJournal journal = journalLocation == null ?
+          null : new ProcessedJournal(journalLocation);
+      pjr2IifConverter.setJournal(journal);
+      PjrRecordCache recordCache = null;
+      if (recordCacheLocation != null) {
+        try {
+          recordCache = new PjrRecordCache(recordCacheLocation);
+        } catch (IOException e) {
+          logger.warning("Unable to open record cache: " + e);
         }
       }
-    } catch (Exception e) {
-      e.printStackTrace();
-      System.exit(1);
+      pjr2IifConverter.setRecordCache(recordCache);
+      try {
+        if (partitionTransactions > 0 || partitionBytes > 0 || partitionByDate) {
+          convertToParts();
+        } else {
+          convertToFile();
+        }
+        if (journal != null) {
+          journal.commit();
+        }
+      } catch (Exception e) {
+        if (journal != null) {
+          journal.discardPending();
+        }
+        throw e;
+      } finally {
+        if (journal != null) {
+          journal.close();
+        }
+        if (recordCache != null) {
+          recordCache.close();
+        }
+      }
+
+      logger.info("Converted PJRs to " + iifFile);
+
+      // The IIF and the journal are on disk by now, so the sources can go.
+      if (deletePjrFiles || archiveLocation != null) {
+        SourceCleaner sourceCleaner = new SourceCleaner(archiveLocation);
+        sourceCleaner.setThreadCount(threadCount);
+        return sourceCleaner.clean(pjrFiles);
+      }
+      return null;
+    }
+
+    private void convertToFile() throws Exception {
+      AtomicOutputFile atomicOutputFile = new AtomicOutputFile(iifFile);
+      try {
+        pjr2IifConverter.convert(atomicOutputFile.getWriter(), ignoreNegativeTransactions);
+        atomicOutputFile.commit();
+      } finally {
+        atomicOutputFile.close();
+      }
+    }
+
+    // The parts are written to temporary files and only moved into place once all are done.
+    private void convertToParts() throws Exception {
+      PartitionedIifWriter partitionedIifWriter = new PartitionedIifWriter(iifFile);
+      partitionedIifWriter.setMaxTransactions(partitionTransactions);
+      partitionedIifWriter.setMaxChars(partitionBytes);
+      partitionedIifWriter.setSplitByDate(partitionByDate);
+      try {
+        pjr2IifConverter.convert(partitionedIifWriter, ignoreNegativeTransactions);
+        partitionedIifWriter.close();
+      } finally {
+        partitionedIifWriter.abort();
+      }
+    }
+
+    @Override
+    protected void done() {
+      progressTimer.stop();
+      onConversionDone(this);
     }
   }
 
   private void onChoosePjrFilesAction() {
+    List<File> pjrFiles = getPjrFiles();
     File currentFile = pjrFiles.isEmpty() ? null : pjrFiles.get(0);
     File[] files = chooseFiles(currentFile, PJR_FILE_FILTER, false, true);
     if (files != null) {
@@ -329,7 +685,7 @@ public class MainFrame extends JFrame {
   }
 
   public List<File> getPjrFiles() {
-    return pjrFiles;
+    return pjrFileListModel.getFiles();
   }
 
   public boolean isDeletePjrFiles() {
@@ -349,12 +705,112 @@ public class MainFrame extends JFrame {
   }
 
   public void setPjrFiles(File[] pjrFiles) {
-    this.pjrFiles.clear();
-    DefaultListModel<File> listModel = new DefaultListModel<File>();
-    pjrFilesList.setModel(listModel);
-    for (File pjrFile : pjrFiles) {
-      this.pjrFiles.add(pjrFile);
-      listModel.addElement(pjrFile);
+    cancelDirectoryScan();
+    pjrDirectory = null;
+    pjrFileListModel.clear();
+    pjrFileListModel.addFiles(Arrays.asList(pjrFiles));
+    updatePjrFilesSummary();
+  }
+
+  /**
+   * Lists the PJR files in the directory in the background, adding them to the list as they are
+   * found.
+   */
+  private void scanPjrDirectory(File directory) {
+    cancelDirectoryScan();
+    pjrDirectory = directory;
+    pjrFileListModel.clear();
+    directoryScanWorker = new DirectoryScanWorker(directory);
+    updatePjrFilesSummary();
+    directoryScanWorker.execute();
+  }
+
+  private void cancelDirectoryScan() {
+    if (directoryScanWorker != null) {
+      directoryScanWorker.cancel(true);
+      directoryScanWorker = null;
+    }
+  }
+
+  private void updatePjrFilesSummary() {
+    int count = pjrFileListModel.getSize();
+    StringBuilder summary = new StringBuilder();
+    if (directoryScanWorker != null) {
+      summary.append(String.format("Listing %s... %,d PJR files so far.", pjrDirectory, count));
+    } else if (count == 0) {
+      summary.append(pjrDirectory == null ?
+          "No PJR files chosen." : "No PJR files in " + pjrDirectory + ".");
+    } else if (pjrDirectory != null) {
+      summary.append(String.format("%,d PJR files in %s.", count, pjrDirectory));
+    } else {
+      summary.append(String.format("%,d PJR files chosen.", count));
+    }
+    pjrFilesSummaryLabel.setText(summary.toString());
+  }
+
+  /**
+   * Lists a directory with a directory stream, which, unlike {@link File#listFiles()}, doesn't
+   * need the whole listing in memory before the first file shows up.
+   */
+  private class DirectoryScanWorker extends SwingWorker<Void, File> {
+    private File directory;
+
+    public DirectoryScanWorker(File directory) {
+      this.directory = directory;
+    }
+
+    @Override
+    protected Void doInBackground() throws Exception {
+      DirectoryStream<Path> directoryStream =
+          Files.newDirectoryStream(directory.toPath(), new DirectoryStream.Filter<Path>() {
+            @Override
+            public boolean accept(Path path) {
+              return Pjr2IifConverter.PJR_INPUT_FILENAME_FILTER.accept(directory,
+                                                                  path.getFileName().toString());
+            }
+          });
+      try {
+        List<File> chunk = new ArrayList<File>(SCAN_CHUNK_SIZE);
+        for (Path path : directoryStream) {
+          if (isCancelled()) {
+            break;
+          }
+          chunk.add(path.toFile());
+          if (chunk.size() == SCAN_CHUNK_SIZE) {
+            publish(chunk.toArray(new File[chunk.size()]));
+            chunk.clear();
+          }
+        }
+        publish(chunk.toArray(new File[chunk.size()]));
+      } finally {
+        directoryStream.close();
+      }
+      return null;
+    }
+
+    @Override
+    protected void process(List<File> files) {
+      // Chunks from a scan that has been replaced are dropped.
+      if (directoryScanWorker == this) {
+        pjrFileListModel.addFiles(files);
+        updatePjrFilesSummary();
+      }
+    }
+
+    @Override
+    protected void done() {
+      if (directoryScanWorker != this) {
+        return;
+      }
+      directoryScanWorker = null;
+      try {
+        get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        logger.warning("Unable to list PJR files in " + directory + ": " + e.getCause());
+      }
+      updatePjrFilesSummary();
     }
   }
 
@@ -389,7 +845,9 @@ public class MainFrame extends JFrame {
                              iifFile.getAbsolutePath());
     }
     List<File> pjrFiles = getPjrFiles();
-    if (!pjrFiles.isEmpty()) {
+    if (pjrDirectory != null) {
+      properties.setProperty(SettingsKey.PJR_LOCATION.getKey(), pjrDirectory.getPath());
+    } else if (!pjrFiles.isEmpty()) {
       properties.setProperty(SettingsKey.PJR_LOCATION.getKey(),
                              pjrFiles.get(0).getParent());
     }
@@ -0,0 +1,121 @@
+package com.smike.pjr2iifconverter;
+
+import java.io.InputStream;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streams through a PJR journal holding many transactions and extracts a record from each
+ * transaction element as soon as it ends, so memory use doesn't depend on the size of the
+ * journal.
+ *
+ * Within a transaction element, values are extracted the same way as {@link StaxPjrParser} does
+ * for a whole document. Anything outside of transaction elements is ignored, and a transaction
+ * element nested in another one is treated as part of the outer one. Instances are not
+ * thread-safe.
+ */
+public class MultiTransactionPjrParser {
+  public static final String DEFAULT_TRANSACTION_TAG = "Transaction";
+
+  public interface RecordHandler {
+    void handle(PjrRecord pjrRecord) throws Exception;
+  }
+
+  private static final String[] TAGS = {
+    PjrParser.RECEIPT_DATE_TAG, PjrParser.TRANSACTION_ID_TAG,
+    PjrParser.TRANSACTION_TOTAL_NET_AMOUNT_TAG, PjrParser.ACCOUNT_ID_TAG
+  };
+
+  private String transactionTag;
+
+  private String[] values = new String[TAGS.length];
+  // The element depth at which each tag's value is being captured, or -1 if it isn't.
+  private int[] captureDepths = new int[TAGS.length];
+  private StringBuilder[] captures = new StringBuilder[TAGS.length];
+
+  public MultiTransactionPjrParser(String transactionTag) {
+    this.transactionTag = transactionTag;
+    for (int i = 0; i < TAGS.length; i++) {
+      captures[i] = new StringBuilder();
+    }
+  }
+
+  public String getTransactionTag() {
+    return transactionTag;
+  }
+
+  /**
+   * Hands a record for each transaction to the handler, in document order.
+   *
+   * @param systemId identifies the document in error messages and resolves relative references.
+   */
+  public void parse(InputStream inputStream, String systemId, RecordHandler recordHandler)
+      throws Exception {
+    XMLStreamReader reader = XmlParserFactory.createXmlStreamReader(systemId, inputStream);
+    try {
+      int depth = 0;
+      // The depth of the transaction element being read, or -1 if outside of one.
+      int transactionDepth = -1;
+      while (reader.hasNext()) {
+        switch (reader.next()) {
+          case XMLStreamConstants.START_ELEMENT:
+            depth++;
+            String name = reader.getLocalName();
+            if (transactionDepth == -1) {
+              if (transactionTag.equals(name)) {
+                transactionDepth = depth;
+                startTransaction();
+              }
+              break;
+            }
+            for (int i = 0; i < TAGS.length; i++) {
+              if (values[i] == null && captureDepths[i] == -1 && TAGS[i].equals(name)) {
+                captureDepths[i] = depth;
+              }
+            }
+            break;
+          case XMLStreamConstants.CHARACTERS:
+          case XMLStreamConstants.CDATA:
+          case XMLStreamConstants.SPACE:
+            if (transactionDepth == -1) {
+              break;
+            }
+            for (int i = 0; i < TAGS.length; i++) {
+              if (captureDepths[i] != -1) {
+                captures[i].append(reader.getTextCharacters(), reader.getTextStart(),
+                                   reader.getTextLength());
+              }
+            }
+            break;
+          case XMLStreamConstants.END_ELEMENT:
+            if (depth == transactionDepth) {
+              transactionDepth = -1;
+              recordHandler.handle(new PjrRecord(values[0], values[1], values[2], values[3]));
+            } else if (transactionDepth != -1) {
+              for (int i = 0; i < TAGS.length; i++) {
+                if (captureDepths[i] == depth) {
+                  values[i] = captures[i].toString();
+                  captureDepths[i] = -1;
+                }
+              }
+            }
+            depth--;
+            break;
+          default:
+            break;
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  private void startTransaction() {
+    for (int i = 0; i < TAGS.length; i++) {
+      values[i] = null;
+      captureDepths[i] = -1;
+      captures[i].setLength(0);
+    }
+  }
+}
@@ -0,0 +1,34 @@
+package com.smike.pjr2iifconverter;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * The available ways of extracting fields from PJR files.
+ */
+public enum ParserEngine {
+  /** Parses each file into a complete DOM. */
+  DOM {
+    @Override
+    public PjrParser newParser() throws ParserConfigurationException {
+      return new DomPjrParser();
+    }
+  },
+  /** Streams each file and stops as soon as every field has been found. */
+  STAX {
+    @Override
+    public PjrParser newParser() {
+      return new StaxPjrParser();
+    }
+  };
+
+  public abstract PjrParser newParser() throws ParserConfigurationException;
+
+  public static ParserEngine getEnum(String name) {
+    for (ParserEngine parserEngine : ParserEngine.values()) {
+      if (parserEngine.name().equalsIgnoreCase(name)) {
+        return parserEngine;
+      }
+    }
+    return null;
+  }
+}
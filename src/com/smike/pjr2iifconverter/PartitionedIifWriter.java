@@ -0,0 +1,449 @@
+package com.smike.pjr2iifconverter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+/**
+ * Writes IIF output as a series of parts, each a complete IIF file with its own header, next to
+ * where a single IIF file would have gone: {@code out.iif} becomes {@code out-0001.iif},
+ * {@code out-0002.iif} and so on. Closing the writer lists the parts in a manifest,
+ * {@code out.manifest}, with the number of transactions and range of receipt dates in each.
+ *
+ * Parts are kept under temporary names until the writer is closed, when they're all moved into
+ * place together, the manifest is written and parts left over from a longer earlier run are
+ * deleted. A conversion that fails calls {@link #abort()} instead, which leaves the earlier
+ * output as it was.
+ *
+ * Written as a {@link TransactionSink}, a new part is started once the current one reaches the
+ * maximum number of transactions or characters, or when the receipt date changes. The finished
+ * part is closed in the background while the next one is written. Parts can also be opened with
+ * {@link #openPart()} and written by several threads at once, one part per thread.
+ */
+public class PartitionedIifWriter implements TransactionSink, Closeable {
+  private static Logger logger = Logger.getLogger(PartitionedIifWriter.class.getName());
+
+  private static final String MANIFEST_SUFFIX = ".manifest";
+  private static final String MANIFEST_HEADER = "#PART\tTRANSACTIONS\tEARLIESTDATE\tLATESTDATE\n";
+
+  private File directory;
+  private String baseName;
+
+  private int maxTransactions;
+  private long maxChars;
+  private boolean splitByDate;
+  private boolean writeMemos;
+  private ConversionMetrics metrics;
+
+  private int partCount;
+  private List<Part> openedParts = new ArrayList<Part>();
+  private List<Part> closedParts = new ArrayList<Part>();
+
+  // The part being written as a transaction sink, and the close of the one before it.
+  private Part currentPart;
+  private ExecutorService closeExecutor;
+  private Future<?> previousClose;
+  private boolean published;
+
+  public PartitionedIifWriter(File iifFile) {
+    File absoluteFile = iifFile.getAbsoluteFile();
+    directory = absoluteFile.getParentFile();
+    baseName = absoluteFile.getName();
+    if (baseName.toLowerCase(Locale.ROOT).endsWith(".iif")) {
+      baseName = baseName.substring(0, baseName.length() - ".iif".length());
+    }
+  }
+
+  public int getMaxTransactions() {
+    return maxTransactions;
+  }
+
+  /**
+   * Sets how many transactions each part holds at most, or 0 for no limit.
+   */
+  public void setMaxTransactions(int maxTransactions) {
+    this.maxTransactions = maxTransactions;
+  }
+
+  public long getMaxChars() {
+    return maxChars;
+  }
+
+  /**
+   * Sets the size at which a part is finished, or 0 for no limit. Parts end with the first
+   * transaction that reaches it, so they come out a little larger. The size is in characters,
+   * which are bytes unless account names have characters outside of ASCII.
+   */
+  public void setMaxChars(long maxChars) {
+    this.maxChars = maxChars;
+  }
+
+  public boolean isSplitByDate() {
+    return splitByDate;
+  }
+
+  /**
+   * Sets whether a part is finished whenever the receipt date changes. Transactions that aren't
+   * in date order then end up in many small parts.
+   */
+  public void setSplitByDate(boolean splitByDate) {
+    this.splitByDate = splitByDate;
+  }
+
+  public boolean isWriteMemos() {
+    return writeMemos;
+  }
+
+  /**
+   * Sets whether parts have a MEMO column. See {@link IifWriter#setWriteMemos(boolean)}.
+   */
+  public void setWriteMemos(boolean writeMemos) {
+    this.writeMemos = writeMemos;
+  }
+
+  /**
+   * Sets where to record format and write times, or null to not record them.
+   */
+  public void setMetrics(ConversionMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  public File getManifestFile() {
+    return new File(directory, baseName + MANIFEST_SUFFIX);
+  }
+
+  /**
+   * Starts the next part and writes its header. The part is written to a temporary file until
+   * the writer is closed.
+   */
+  public Part openPart() throws IOException {
+    int number;
+    synchronized (this) {
+      number = ++partCount;
+    }
+    Part part = new Part(number, getPartFile(number));
+    synchronized (openedParts) {
+      openedParts.add(part);
+    }
+    return part;
+  }
+
+  /**
+   * Returns the parts that have been closed so far, in order.
+   */
+  public List<Part> getParts() {
+    synchronized (closedParts) {
+      List<Part> parts = new ArrayList<Part>(closedParts);
+      Collections.sort(parts, new Comparator<Part>() {
+        @Override
+        public int compare(Part part1, Part part2) {
+          return Integer.compare(part1.getNumber(), part2.getNumber());
+        }
+      });
+      return parts;
+    }
+  }
+
+  @Override
+  public void write(int receiptEpochDay, String transactionId, long amountCents, String account,
+      String memo) throws IOException {
+    if (currentPart == null || isFull(currentPart, receiptEpochDay)) {
+      rollOver();
+    }
+    currentPart.write(receiptEpochDay, transactionId, amountCents, account, memo);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (currentPart != null) {
+      currentPart.flush();
+    }
+  }
+
+  /**
+   * Closes the last part, waits for the others to finish closing, moves them all into place and
+   * writes the manifest. Parts opened with {@link #openPart()} have to be closed first to be
+   * listed. Call this only once the conversion has succeeded.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      if (currentPart != null) {
+        currentPart.close();
+        currentPart = null;
+      }
+      waitForPreviousClose();
+    } finally {
+      if (closeExecutor != null) {
+        closeExecutor.shutdown();
+      }
+    }
+
+    List<Part> parts = getParts();
+    for (Part part : parts) {
+      part.commit();
+    }
+    writeManifest(parts);
+    published = true;
+    deleteStaleParts(parts.size());
+    // Parts that were opened but never closed aren't listed, so they're thrown away.
+    discardAll();
+  }
+
+  /**
+   * Throws away every part, including the one being written, and leaves the parts and manifest
+   * of an earlier run as they were. Once {@link #close()} has succeeded this does nothing, so it
+   * can be called from a finally block.
+   */
+  public void abort() {
+    if (published) {
+      return;
+    }
+    try {
+      waitForPreviousClose();
+    } catch (IOException e) {
+      logger.fine("Unable to close an IIF part before aborting: " + e);
+    } finally {
+      if (closeExecutor != null) {
+        closeExecutor.shutdown();
+      }
+    }
+    currentPart = null;
+    discardAll();
+  }
+
+  private boolean isFull(Part part, int receiptEpochDay) {
+    if (part.getTransactionCount() == 0) {
+      return false;
+    }
+    return (maxTransactions > 0 && part.getTransactionCount() >= maxTransactions) ||
+        (maxChars > 0 && part.getCharCount() >= maxChars) ||
+        (splitByDate && part.getLastEpochDay() != receiptEpochDay);
+  }
+
+  private void rollOver() throws IOException {
+    // Only one part closes in the background at a time, so the parts waiting on it are bounded.
+    waitForPreviousClose();
+    final Part finishedPart = currentPart;
+    currentPart = openPart();
+    if (finishedPart != null) {
+      if (closeExecutor == null) {
+        closeExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "iif-part-closer");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+      }
+      previousClose = closeExecutor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          finishedPart.close();
+          return null;
+        }
+      });
+    }
+  }
+
+  private void waitForPreviousClose() throws IOException {
+    if (previousClose == null) {
+      return;
+    }
+    try {
+      previousClose.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while closing an IIF part", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException("Unable to close an IIF part", cause);
+    } finally {
+      previousClose = null;
+    }
+  }
+
+  private File getPartFile(int number) {
+    return new File(directory, String.format("%s-%04d.iif", baseName, number));
+  }
+
+  private void writeManifest(List<Part> parts) throws IOException {
+    AtomicOutputFile manifestFile = new AtomicOutputFile(getManifestFile());
+    try {
+      Writer writer = manifestFile.getWriter();
+      writer.write(MANIFEST_HEADER);
+      for (Part part : parts) {
+        writer.write(part.getFile().getName() + "\t" + part.getTransactionCount() + "\t" +
+            formatDate(part.getEarliestEpochDay()) + "\t" +
+            formatDate(part.getLatestEpochDay()) + "\n");
+      }
+      manifestFile.commit();
+    } finally {
+      manifestFile.close();
+    }
+  }
+
+  // Parts are numbered from 1 without gaps, so the first missing number ends the old ones.
+  private void deleteStaleParts(int partCount) {
+    for (int number = partCount + 1; ; number++) {
+      File file = getPartFile(number);
+      if (!file.exists()) {
+        break;
+      }
+      if (file.delete()) {
+        logger.info("Deleted " + file + ", left over from an earlier conversion.");
+      } else {
+        logger.warning("Unable to delete " + file);
+      }
+    }
+  }
+
+  private void discardAll() {
+    List<Part> parts;
+    synchronized (openedParts) {
+      parts = new ArrayList<Part>(openedParts);
+      openedParts.clear();
+    }
+    for (Part part : parts) {
+      part.discard();
+    }
+  }
+
+  private void partClosed(Part part) {
+    synchronized (closedParts) {
+      closedParts.add(part);
+    }
+  }
+
+  // Dates are written as YYYY-MM-DD, or left empty for a part with no transactions.
+  private static String formatDate(int epochDay) {
+    if (epochDay == Integer.MIN_VALUE) {
+      return "";
+    }
+    int yearMonthDate = PjrFieldParser.toYearMonthDate(epochDay);
+    return String.format("%04d-%02d-%02d", yearMonthDate / 10000, yearMonthDate / 100 % 100,
+                         yearMonthDate % 100);
+  }
+
+  /**
+   * One IIF file of the output. Each part is written by one thread at a time.
+   */
+  public class Part implements TransactionSink, Closeable {
+    private int number;
+    private File file;
+    private AtomicOutputFile outputFile;
+    private IifWriter iifWriter;
+
+    private int transactionCount;
+    private int earliestEpochDay = Integer.MIN_VALUE;
+    private int latestEpochDay = Integer.MIN_VALUE;
+    private int lastEpochDay;
+
+    private Part(int number, File file) throws IOException {
+      this.number = number;
+      this.file = file;
+      outputFile = new AtomicOutputFile(file);
+      iifWriter = new IifWriter(outputFile.getWriter());
+      iifWriter.setWriteMemos(writeMemos);
+      iifWriter.setMetrics(metrics);
+      try {
+        iifWriter.writeHeader();
+      } catch (IOException e) {
+        outputFile.close();
+        throw e;
+      }
+    }
+
+    public int getNumber() {
+      return number;
+    }
+
+    public File getFile() {
+      return file;
+    }
+
+    public int getTransactionCount() {
+      return transactionCount;
+    }
+
+    public long getCharCount() {
+      return iifWriter.getCharCount();
+    }
+
+    /**
+     * Returns the earliest receipt date in the part, in days since 1970-01-01.
+     */
+    public int getEarliestEpochDay() {
+      return earliestEpochDay;
+    }
+
+    public int getLatestEpochDay() {
+      return latestEpochDay;
+    }
+
+    /**
+     * Returns the receipt date of the transaction written last.
+     */
+    public int getLastEpochDay() {
+      return lastEpochDay;
+    }
+
+    @Override
+    public void write(int receiptEpochDay, String transactionId, long amountCents,
+        String account, String memo) throws IOException {
+      iifWriter.write(receiptEpochDay, transactionId, amountCents, account, memo);
+      if (transactionCount++ == 0) {
+        earliestEpochDay = receiptEpochDay;
+        latestEpochDay = receiptEpochDay;
+      } else {
+        earliestEpochDay = Math.min(earliestEpochDay, receiptEpochDay);
+        latestEpochDay = Math.max(latestEpochDay, receiptEpochDay);
+      }
+      lastEpochDay = receiptEpochDay;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      iifWriter.flush();
+    }
+
+    /**
+     * Syncs the file to disk. It's moved to its final name when the writer is closed.
+     */
+    @Override
+    public void close() throws IOException {
+      outputFile.finish();
+      partClosed(this);
+    }
+
+    private void commit() throws IOException {
+      outputFile.commit();
+      logger.info("Wrote " + transactionCount + " transactions to " + file + ".");
+    }
+
+    private void discard() {
+      try {
+        outputFile.close();
+      } catch (IOException e) {
+        logger.warning("Unable to discard " + file + ": " + e);
+      }
+    }
+  }
+}
@@ -1,87 +1,446 @@
 package com.smike.pjr2iifconverter;
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FilenameFilter;
 import java.io.IOException;
-import java.text.ParseException;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.Formatter;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-
 import com.opencsv.exceptions.CsvException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
-
-import com.opencsv.CSVReader;
 
 public class Pjr2IifConverter {
   private static Logger logger = Logger.getLogger(Pjr2IifConverter.class.getName());
 
-  private static final String RECEIPT_DATE_TAG = "ReceiptDate";
-  private static final String TRANSACTION_ID_TAG = "TransactionID";
-  private static final String TRANSACTION_TOTAL_NET_AMOUNT_TAG = "TransactionTotalNetAmount";
-  private static final String ACCOUNT_ID_TAG = "AccountID";
-
-  private static final String IIF_HEADER =
-      "!TRNS\tTRNSID\tTRNSTYPE\tDATE\tDOCNUM\tACCNT\tNAME\tAMOUNT\tPAID\n" +
-      "!SPL\tSPLID\tTRNSTYPE\tDATE\tACCNT\tAMOUNT\tCLEAR\n" +
-      "!ENDTRNS\n";
-  private static final String IIF_TRANSACTION =
-      "\nTRNS\t\tINVOICE\t%tD\t%s\tAccounts Receivable\t%s\t%.2f\tN\n" +
-      "SPL\t\tINVOICE\t%1$tD\tSales:Local Account Sales\t-%4$.2f\tN\n" +
-      "ENDTRNS\n";
-
-  private DocumentBuilder documentBuilder;
-  private Map<String, String> accountIdMap = new HashMap<String, String>();
-  private List<TransactionData> transactions = new LinkedList<TransactionData>();
-
-  private List<File> xmlFiles = new LinkedList<File>();
+  public static final FilenameFilter PJR_FILENAME_FILTER = new FilenameFilter() {
+    @Override
+    public boolean accept(File dir, String name) {
+      return name.endsWith(".xml") && name.startsWith("PJR");
+    }
+  };
+
+  /**
+   * Accepts PJR files and archives that may hold them.
+   */
+  public static final FilenameFilter PJR_INPUT_FILENAME_FILTER = new FilenameFilter() {
+    @Override
+    public boolean accept(File dir, String name) {
+      return PJR_FILENAME_FILTER.accept(dir, name) || ArchiveReader.isArchive(name);
+    }
+  };
+
+  private ParserEngine parserEngine = ParserEngine.DOM;
+  private ReadMode readMode = ReadMode.STREAM;
+  private int threadCount = 1;
+  private String transactionTag;
+  private Aggregation aggregation = Aggregation.NONE;
+  private boolean writeHeader = true;
+  private boolean sortOutput;
+  private long sortMemoryBytes = TransactionSorter.DEFAULT_MEMORY_BYTES;
+  private ProcessedJournal journal;
+  private ConversionMetrics metrics;
+  private PjrRecordCache recordCache;
+  private AccountIdMap accountIdMap;
+
+  private List<File> xmlFiles = new ArrayList<File>();
   private File accountIdMapFile;
 
+  private int fileCount;
+  private int transactionCount;
+  private int invoiceCount;
+
+  private volatile boolean cancelled;
+
   public Pjr2IifConverter(List<File> xmlFiles, File accountIdMapFile){
     this.xmlFiles.addAll(xmlFiles);
     this.accountIdMapFile = accountIdMapFile;
   }
 
+  /**
+   * Creates a converter that uses an account ID map that's already loaded, which several
+   * converters can share.
+   */
+  public Pjr2IifConverter(List<File> xmlFiles, AccountIdMap accountIdMap) {
+    this.xmlFiles.addAll(xmlFiles);
+    this.accountIdMap = accountIdMap;
+  }
+
+  public ParserEngine getParserEngine() {
+    return parserEngine;
+  }
+
+  public void setParserEngine(ParserEngine parserEngine) {
+    this.parserEngine = parserEngine;
+  }
+
+  public ReadMode getReadMode() {
+    return readMode;
+  }
+
+  public void setReadMode(ReadMode readMode) {
+    this.readMode = readMode;
+  }
+
+  public int getThreadCount() {
+    return threadCount;
+  }
+
+  /**
+   * Sets how many files are read and parsed concurrently. The output is the same for any count.
+   */
+  public void setThreadCount(int threadCount) {
+    this.threadCount = threadCount;
+  }
+
+  public String getTransactionTag() {
+    return transactionTag;
+  }
+
+  /**
+   * Sets the name of the elements that each hold one transaction in PJR journals, such as
+   * {@link MultiTransactionPjrParser#DEFAULT_TRANSACTION_TAG}. Every transaction in every PJR is
+   * then converted, and the parser engine is ignored. Null, the default, means each PJR holds one
+   * transaction.
+   */
+  public void setTransactionTag(String transactionTag) {
+    this.transactionTag = transactionTag;
+  }
+
+  public Aggregation getAggregation() {
+    return aggregation;
+  }
+
+  /**
+   * Sets how transactions are rolled up into summary invoices, which get a MEMO column with the
+   * TransactionIDs they cover. With anything but {@link Aggregation#NONE}, nothing is written
+   * until every PJR has been read.
+   */
+  public void setAggregation(Aggregation aggregation) {
+    this.aggregation = aggregation;
+  }
+
+  public boolean isSortOutput() {
+    return sortOutput;
+  }
+
+  /**
+   * Sets whether transactions are written in order of receipt date and then TransactionID,
+   * rather than in the order the PJRs are read. Sorting holds nothing back until every PJR has
+   * been read, and spills to temporary files beyond the sort memory. Aggregated invoices are
+   * always in date order, so this only applies with {@link Aggregation#NONE}.
+   */
+  public void setSortOutput(boolean sortOutput) {
+    this.sortOutput = sortOutput;
+  }
+
+  public long getSortMemoryBytes() {
+    return sortMemoryBytes;
+  }
+
+  /**
+   * Sets roughly how much memory sorting may use before it spills sorted runs to disk.
+   */
+  public void setSortMemoryBytes(long sortMemoryBytes) {
+    this.sortMemoryBytes = sortMemoryBytes;
+  }
+
+  public boolean isWriteHeader() {
+    return writeHeader;
+  }
+
+  /**
+   * Sets whether the IIF header is written before the transactions. Leave it out when appending
+   * to an existing IIF file.
+   */
+  public void setWriteHeader(boolean writeHeader) {
+    this.writeHeader = writeHeader;
+  }
+
+  public ProcessedJournal getJournal() {
+    return journal;
+  }
+
+  /**
+   * Sets a journal of earlier conversions. Files that it has seen, including whole archives, are
+   * skipped without being read, and transactions whose IDs it has seen are left out. Newly
+   * converted files and transactions are added to the journal, but the caller has to commit it
+   * once the IIF is safely written.
+   */
+  public void setJournal(ProcessedJournal journal) {
+    this.journal = journal;
+  }
+
+  public ConversionMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Sets where to count skipped files and time each stage of the conversion. Without metrics,
+   * nothing is timed.
+   */
+  public void setMetrics(ConversionMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  public PjrRecordCache getRecordCache() {
+    return recordCache;
+  }
+
+  /**
+   * Sets a cache of the fields extracted from PJR files, so that files converted before are
+   * looked up instead of being parsed again. Null, the default, parses every file.
+   */
+  public void setRecordCache(PjrRecordCache recordCache) {
+    this.recordCache = recordCache;
+  }
+
+  /**
+   * Returns how many PJR files the last conversion read, or with a transaction tag, how many
+   * transactions it read.
+   */
+  public int getFileCount() {
+    return fileCount;
+  }
+
+  /**
+   * Returns how many transactions the last conversion wrote, or with aggregation, how many it
+   * added to the invoices.
+   */
+  public int getTransactionCount() {
+    return transactionCount;
+  }
+
+  /**
+   * Returns how many invoices the last conversion wrote. Without aggregation this is the same as
+   * the transaction count.
+   */
+  public int getInvoiceCount() {
+    return invoiceCount;
+  }
+
+  /**
+   * Stops a conversion running on another thread. The conversion throws a
+   * {@link CancellationException} before it handles the next file, leaving whatever it has
+   * already written in the writer.
+   */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
   public String convert(boolean ignoreNegativeTransactions) throws Exception {
-    documentBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+    StringWriter stringWriter = new StringWriter();
+    convert(stringWriter, ignoreNegativeTransactions);
+    return stringWriter.toString();
+  }
 
-    parseAccountIdMap(accountIdMapFile);
+  /**
+   * Writes the IIF to the stream in the platform's default charset, buffering as it goes. The
+   * stream is flushed but not closed.
+   */
+  public void convert(OutputStream outputStream, boolean ignoreNegativeTransactions)
+      throws Exception {
+    Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream));
+    convert(writer, ignoreNegativeTransactions);
+    writer.flush();
+  }
 
-    Formatter formatter = new Formatter();
-    formatter.format(IIF_HEADER);
-    for (File xmlFile : xmlFiles) {
-      TransactionData transactionData = parsePjrFile(xmlFile);
-      System.out.println(xmlFile + ": " + transactionData);
+  /**
+   * Writes the IIF to the writer one transaction at a time, so only the transactions currently
+   * being read are held in memory. The writer is flushed but not closed.
+   */
+  public void convert(Writer writer, final boolean ignoreNegativeTransactions) throws Exception {
+    try {
+      IifWriter iifWriter = new IifWriter(writer);
+      iifWriter.setMetrics(metrics);
+      iifWriter.setWriteMemos(aggregation != Aggregation.NONE);
+      if (writeHeader) {
+        iifWriter.writeHeader();
+      }
+      convertFiles(iifWriter, ignoreNegativeTransactions);
+    } finally {
+      if (metrics != null) {
+        metrics.conversionFinished();
+      }
+    }
+  }
 
-      // If the transaction is invalid, skip it over.
-      if (transactionData == null ||
-          (ignoreNegativeTransactions && transactionData.getAmount() < 0)) {
-        continue;
+  /**
+   * Writes the IIF as a series of parts, each with its own header. The partitioned writer is
+   * flushed but not closed, so the last part and the manifest are left for the caller to finish.
+   */
+  public void convert(PartitionedIifWriter partitionedIifWriter,
+      boolean ignoreNegativeTransactions) throws Exception {
+    try {
+      partitionedIifWriter.setMetrics(metrics);
+      partitionedIifWriter.setWriteMemos(aggregation != Aggregation.NONE);
+      convertFiles(partitionedIifWriter, ignoreNegativeTransactions);
+    } finally {
+      if (metrics != null) {
+        metrics.conversionFinished();
       }
+    }
+  }
 
-      formatter.format(IIF_TRANSACTION,
-                       transactionData.getReceiptDate(),
-                       transactionData.getTransactionId(),
-                       transactionData.getAccount(),
-                       transactionData.getAmount());
-      transactions.add(transactionData);
+  /**
+   * Hands the transactions to the sink in the order they're read. The sink is flushed but not
+   * closed.
+   */
+  public void convert(TransactionSink transactionSink, boolean ignoreNegativeTransactions)
+      throws Exception {
+    try {
+      convertFiles(transactionSink, ignoreNegativeTransactions);
+    } finally {
+      if (metrics != null) {
+        metrics.conversionFinished();
+      }
     }
+  }
 
-    String output = formatter.toString();
-    formatter.close();
-    return output;
+  private void convertFiles(TransactionSink transactionSink, boolean ignoreNegativeTransactions)
+      throws Exception {
+    if (!sortOutput || aggregation != Aggregation.NONE) {
+      readFiles(transactionSink, ignoreNegativeTransactions);
+      return;
+    }
+    TransactionSorter transactionSorter = new TransactionSorter(sortMemoryBytes);
+    try {
+      readFiles(transactionSorter, ignoreNegativeTransactions);
+      checkCancelled();
+      transactionSorter.writeTo(transactionSink);
+    } finally {
+      transactionSorter.close();
+    }
+  }
+
+  private void readFiles(final TransactionSink transactionSink,
+      final boolean ignoreNegativeTransactions) throws Exception {
+    if (accountIdMapFile != null) {
+      parseAccountIdMap(accountIdMapFile);
+    }
+    checkCancelled();
+    fileCount = 0;
+    transactionCount = 0;
+    invoiceCount = 0;
+    List<File> pjrFiles = xmlFiles;
+    if (journal != null) {
+      pjrFiles = new ArrayList<File>(xmlFiles.size());
+      for (File xmlFile : xmlFiles) {
+        if (!journal.isProcessed(xmlFile)) {
+          pjrFiles.add(xmlFile);
+        }
+      }
+      int skippedCount = xmlFiles.size() - pjrFiles.size();
+      logger.info("Skipping " + skippedCount + " PJR files that were already converted.");
+      if (metrics != null) {
+        metrics.addFilesSeen(skippedCount);
+        metrics.addSkipped(ConversionMetrics.SkipReason.ALREADY_CONVERTED, skippedCount);
+      }
+    }
+    if (metrics != null && transactionTag == null) {
+      // The reader counts the PJRs in archives as it finds them.
+      int archiveCount = 0;
+      for (File pjrFile : pjrFiles) {
+        if (ArchiveReader.isArchive(pjrFile.getName())) {
+          archiveCount++;
+        }
+      }
+      metrics.addFilesSeen(pjrFiles.size() - archiveCount);
+    }
+
+    final TransactionAggregator transactionAggregator =
+        aggregation == Aggregation.NONE ? null : new TransactionAggregator(aggregation);
+    PjrFileReader pjrFileReader = new PjrFileReader(parserEngine, threadCount);
+    pjrFileReader.setReadMode(readMode);
+    pjrFileReader.setTransactionTag(transactionTag);
+    pjrFileReader.setMetrics(metrics);
+    pjrFileReader.setRecordCache(recordCache);
+    pjrFileReader.read(pjrFiles, new PjrFileReader.Handler() {
+      @Override
+      public void handle(File xmlFile, String entryName, PjrRecord pjrRecord)
+          throws IOException {
+        checkCancelled();
+        fileCount++;
+        String pjrName = entryName == null ? xmlFile.toString() : xmlFile + "!/" + entryName;
+        long startNanos = metrics == null ? 0 : System.nanoTime();
+        TransactionData transactionData = toTransactionData(pjrName, pjrRecord);
+        if (metrics != null) {
+          metrics.recordStage(ConversionMetrics.Stage.LOOKUP, System.nanoTime() - startNanos);
+        }
+        if (logger.isLoggable(Level.FINE)) {
+          logger.fine(pjrName + ": " + transactionData);
+        }
+
+        // If the transaction is invalid, skip it over.
+        if (transactionData == null) {
+          return;
+        }
+        // The sign of the amount as written, since a fraction of a cent rounds to zero.
+        if (ignoreNegativeTransactions &&
+            PjrFieldParser.isNegativeAmount(pjrRecord.getTransactionTotalNetAmount())) {
+          if (metrics != null) {
+            metrics.addNegativeFiltered();
+          }
+          return;
+        }
+
+        String transactionId = transactionData.getTransactionId();
+        if (journal != null && transactionId != null) {
+          if (journal.containsTransactionId(transactionId)) {
+            logger.info("Skipping " + pjrName + " because transaction " + transactionId +
+                " was already converted.");
+            journal.addProcessed(xmlFile);
+            if (metrics != null) {
+              metrics.addSkipped(ConversionMetrics.SkipReason.DUPLICATE_TRANSACTION, 1);
+            }
+            return;
+          }
+          journal.addTransactionId(transactionId);
+        }
+
+        if (transactionAggregator == null) {
+          transactionSink.write(transactionData.getReceiptEpochDay(), transactionId,
+                                transactionData.getAmountCents(), transactionData.getAccount(),
+                                null);
+          invoiceCount++;
+        } else {
+          transactionAggregator.add(transactionData);
+        }
+        transactionCount++;
+        if (journal != null) {
+          journal.addProcessed(xmlFile);
+        }
+        if (metrics != null) {
+          metrics.addFileConverted();
+          metrics.addTransactionWritten();
+        }
+      }
+    });
+    if (recordCache != null) {
+      // A watched folder's cache stays open for days, so each batch's records are saved now.
+      recordCache.flush();
+    }
+    if (transactionAggregator != null) {
+      checkCancelled();
+      invoiceCount = transactionAggregator.writeTo(transactionSink);
+    }
+    transactionSink.flush();
+  }
+
+  private void checkCancelled() {
+    if (cancelled) {
+      throw new CancellationException("The conversion was cancelled.");
+    }
   }
 
   private String getAccountName(String accountId) {
@@ -90,107 +449,66 @@ public class Pjr2IifConverter {
     }
 
     // We only care about the part of the id before the first "-".
-    int indexOfDash = accountId.indexOf("-");
-    if (indexOfDash == -1) {
+    int end = accountId.indexOf('-');
+    if (end == -1) {
       return null;
     }
-    accountId = accountId.substring(0, indexOfDash).trim();
+    int start = 0;
+    while (start < end && accountId.charAt(start) <= ' ') {
+      start++;
+    }
+    while (end > start && accountId.charAt(end - 1) <= ' ') {
+      end--;
+    }
 
     // If we don't know about this accountId it won't be in the map and we can ignore it.
-    return accountIdMap.get(accountId);
+    return accountIdMap.get(accountId, start, end);
   }
 
-  private TransactionData parsePjrFile(File file) throws SAXException, IOException, ParseException {
-    Document document = documentBuilder.parse(file);
-    System.out.println("Parsing " + file);
+  private TransactionData toTransactionData(String pjrName, PjrRecord pjrRecord) {
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine("Parsing " + pjrName);
+    }
 
-    String receiptDateString = getFirstValueByTagName(RECEIPT_DATE_TAG, document);
-    String transactionId = getFirstValueByTagName(TRANSACTION_ID_TAG, document);
-    String transactionTotalNetAmount =
-        getFirstValueByTagName(TRANSACTION_TOTAL_NET_AMOUNT_TAG, document);
-    String accountId = getFirstValueByTagName(ACCOUNT_ID_TAG, document);
+    String receiptDateString = pjrRecord.getReceiptDate();
+    String transactionId = pjrRecord.getTransactionId();
+    String transactionTotalNetAmount = pjrRecord.getTransactionTotalNetAmount();
+    String accountId = pjrRecord.getAccountId();
 
     String accountName = this.getAccountName(accountId);
     if (accountName == null || transactionTotalNetAmount == null) {
       // We only care about transactions with known accounts and transaction amounts.
-      logger.info("Skipping " + file + " because " +
+      logger.info("Skipping " + pjrName + " because " +
         (accountName == null ? "account name" : "net amount") + " not found.");
+      if (metrics != null) {
+        metrics.addSkipped(accountName == null ? ConversionMetrics.SkipReason.UNKNOWN_ACCOUNT :
+                                                 ConversionMetrics.SkipReason.MISSING_AMOUNT, 1);
+      }
       return null;
     }
 
     // Parse the date. It should be in YYYY-MM-DD format.
-    String[] dateParts = receiptDateString.split("-");
-    if (dateParts.length != 3) {
-      throw new RuntimeException("Unable to parse date from " + file + ": " + receiptDateString);
+    int receiptEpochDay;
+    try {
+      receiptEpochDay = PjrFieldParser.parseReceiptDate(receiptDateString);
+    } catch (IllegalArgumentException e) {
+      throw new RuntimeException("Unable to parse date from " + pjrName + ": " + receiptDateString,
+                                 e);
     }
-    int year = Integer.parseInt(dateParts[0]);
-    int month = Integer.parseInt(dateParts[1]);
-    int date = Integer.parseInt(dateParts[2]);
-    Calendar calendar = Calendar.getInstance();
-    // Date and month are 0-based
-    calendar.set(year, month-1, date);
-    Date receiptDate = calendar.getTime();
 
-    float amount = Float.parseFloat(transactionTotalNetAmount);
+    long amountCents = PjrFieldParser.parseAmountCents(transactionTotalNetAmount);
 
-    return new TransactionData(receiptDate, transactionId, amount, accountName);
+    return new TransactionData(receiptEpochDay, transactionId, amountCents, accountName);
   }
 
   private void parseAccountIdMap(File file) throws IOException, CsvException {
-    FileReader fileReader = new FileReader(file);
-    CSVReader csvReader = new CSVReader(fileReader);
-    List<String[]> rows = csvReader.readAll();
-    csvReader.close();
-    for (String[] columns : rows) {
-      if (columns.length != 2) {
-        throw new RuntimeException("Unable to parse account ID map file because a line was in an unexpected format: " + columns);
-      }
-      String customerIdString = columns[0];
-      String customerName = columns[1].trim();
-
-      // Sometimes, multiple ids can be mapped to one name
-      for (String customerId : customerIdString.split(",")) {
-        accountIdMap.put(customerId.trim(), customerName);
-      }
-    }
-
-    System.out.println(accountIdMap);
-  }
-
-  private String getFirstValueByTagName(String tagName, Document document) {
-    NodeList nodeList = document.getElementsByTagName(tagName);
-
-    if (nodeList.getLength() == 0) {
-      return null;
-    }
-
-    Node node = nodeList.item(0);
-    return node.getTextContent();
+    accountIdMap = AccountIdMap.load(file);
   }
 
   /**
-   * @param args
+   * Runs a conversion from the command line. See {@link CommandLine} for the arguments.
    */
   public static void main(String[] args) {
-    try {
-      String xmlFile = "/Users/smike/Downloads/PJR"; //PJR3401106140611321090.xml";
-      String accountIdMapFile = "/Users/smike/Downloads/accid.csv";
-
-      File pjrFile = new File(xmlFile);
-      List<File> xmlFiles = new LinkedList<File>();
-      xmlFiles.add(pjrFile);
-      if (pjrFile.isDirectory()) {
-        xmlFiles.clear();
-        File[] files = pjrFile.listFiles();
-        for (File file : files) {
-          xmlFiles.add(file);
-        }
-      }
-
-      Pjr2IifConverter xmlConverter = new Pjr2IifConverter(xmlFiles, new File(accountIdMapFile));
-      System.out.println(xmlConverter.convert(false));
-    } catch (Exception e) {
-      e.printStackTrace();
-    }
+    System.exit(new CommandLine().run(args));
   }
 }
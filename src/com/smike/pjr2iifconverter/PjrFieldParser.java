@@ -0,0 +1,170 @@
+package com.smike.pjr2iifconverter;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Parses PJR field text straight into primitives, without splitting strings or going through
+ * {@link java.util.Calendar}.
+ */
+public class PjrFieldParser {
+  private static final int DAYS_PER_ERA = 146097;
+  // Amounts with more integer digits than this might not fit in a long as cents.
+  private static final int MAX_FAST_INTEGER_DIGITS = 16;
+
+  private PjrFieldParser() {}
+
+  /**
+   * Parses a date in YYYY-MM-DD format into days since 1970-01-01. Out of range months and days
+   * roll over into the neighbouring months, the same as a lenient {@link java.util.Calendar}.
+   *
+   * @throws IllegalArgumentException if the text isn't three dash-separated numbers.
+   */
+  public static int parseReceiptDate(CharSequence text) {
+    if (text == null) {
+      throw new IllegalArgumentException("missing date");
+    }
+
+    int length = text.length();
+    if (length == 10 && text.charAt(4) == '-' && text.charAt(7) == '-') {
+      int year = parseDigits(text, 0, 4);
+      int month = parseDigits(text, 5, 7);
+      int date = parseDigits(text, 8, 10);
+      if (year >= 0 && month >= 0 && date >= 0) {
+        return toEpochDay(year, month, date);
+      }
+    }
+
+    // Anything unusual goes through the same rules that we've always used.
+    String[] dateParts = text.toString().split("-");
+    if (dateParts.length != 3) {
+      throw new IllegalArgumentException(text.toString());
+    }
+    return toEpochDay(Integer.parseInt(dateParts[0]),
+                      Integer.parseInt(dateParts[1]),
+                      Integer.parseInt(dateParts[2]));
+  }
+
+  /**
+   * Parses a decimal amount into cents exactly, rounding half up at the third decimal. Negative
+   * amounts that round to zero come out as zero.
+   *
+   * @throws NumberFormatException if the text isn't a number.
+   */
+  public static long parseAmountCents(CharSequence text) {
+    int length = text.length();
+    boolean negative = length > 0 && text.charAt(0) == '-';
+    int i = negative ? 1 : 0;
+
+    long cents = 0;
+    int digits = 0;
+    int integerDigits = 0;
+    int fractionDigits = -1;
+    for (; i < length; i++) {
+      char c = text.charAt(i);
+      if (c >= '0' && c <= '9') {
+        digits++;
+        if (fractionDigits != -1) {
+          fractionDigits++;
+        } else if (cents != 0 || c != '0') {
+          integerDigits++;
+        }
+        cents = cents * 10 + (c - '0');
+      } else if (c == '.' && fractionDigits == -1) {
+        fractionDigits = 0;
+      } else {
+        break;
+      }
+    }
+
+    // Amounts with at most two decimals are already in cents.
+    if (i == length && digits > 0 && fractionDigits <= 2 &&
+        integerDigits <= MAX_FAST_INTEGER_DIGITS) {
+      for (int scale = Math.max(fractionDigits, 0); scale < 2; scale++) {
+        cents *= 10;
+      }
+      return negative ? -cents : cents;
+    }
+
+    return new BigDecimal(text.toString().trim()).setScale(2, RoundingMode.HALF_UP)
+        .movePointRight(2).longValueExact();
+  }
+
+  /**
+   * Returns whether a decimal amount is below zero, however little. Amounts such as -0.001 round
+   * to zero cents but are still negative.
+   *
+   * @throws NumberFormatException if the text isn't a number.
+   */
+  public static boolean isNegativeAmount(CharSequence text) {
+    int length = text.length();
+    if (length == 0 || (text.charAt(0) != '-' && !Character.isWhitespace(text.charAt(0)))) {
+      return false;
+    }
+    boolean nonZero = false;
+    for (int i = 1; i < length; i++) {
+      char c = text.charAt(i);
+      if (c >= '0' && c <= '9') {
+        nonZero |= c != '0';
+      } else if (c != '.') {
+        return new BigDecimal(text.toString().trim()).signum() < 0;
+      }
+    }
+    return text.charAt(0) == '-' && nonZero;
+  }
+
+  /**
+   * Rounds an amount to cents the same way as formatting it with "%.2f".
+   */
+  public static long toCents(float amount) {
+    return new BigDecimal(Double.toString(amount)).setScale(2, RoundingMode.HALF_UP)
+        .unscaledValue().longValue();
+  }
+
+  /**
+   * Returns the number of days since 1970-01-01 for a proleptic Gregorian date.
+   */
+  public static int toEpochDay(int year, int month, int date) {
+    // Fold out of range months into the year, then count days from March 1st so that the leap
+    // day falls at the end of the year.
+    int monthIndex = month - 1;
+    year += Math.floorDiv(monthIndex, 12);
+    month = Math.floorMod(monthIndex, 12) + 1;
+    if (month <= 2) {
+      year--;
+    }
+    int era = Math.floorDiv(year, 400);
+    int yearOfEra = year - era * 400;
+    int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + date - 1;
+    int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * DAYS_PER_ERA + dayOfEra - 719468;
+  }
+
+  /**
+   * Returns year * 10000 + month * 100 + date for a number of days since 1970-01-01.
+   */
+  public static int toYearMonthDate(int epochDay) {
+    int days = epochDay + 719468;
+    int era = Math.floorDiv(days, DAYS_PER_ERA);
+    int dayOfEra = days - era * DAYS_PER_ERA;
+    int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    int monthIndex = (5 * dayOfYear + 2) / 153;
+    int date = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+    int month = monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+    int year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+    return year * 10000 + month * 100 + date;
+  }
+
+  private static int parseDigits(CharSequence text, int start, int end) {
+    int value = 0;
+    for (int i = start; i < end; i++) {
+      char c = text.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+}
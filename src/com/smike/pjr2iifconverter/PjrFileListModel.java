@@ -0,0 +1,53 @@
+package com.smike.pjr2iifconverter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.swing.AbstractListModel;
+
+/**
+ * A list model over a plain array list of files, so that large directories can be added in
+ * chunks with one event per chunk rather than one per file.
+ */
+@SuppressWarnings("serial")
+public class PjrFileListModel extends AbstractListModel<File> {
+  private List<File> files = new ArrayList<File>();
+
+  @Override
+  public int getSize() {
+    return files.size();
+  }
+
+  @Override
+  public File getElementAt(int index) {
+    return files.get(index);
+  }
+
+  /**
+   * Returns a read-only view of the files. It changes as files are added.
+   */
+  public List<File> getFiles() {
+    return Collections.unmodifiableList(files);
+  }
+
+  public void addFiles(List<File> newFiles) {
+    if (newFiles.isEmpty()) {
+      return;
+    }
+    int firstIndex = files.size();
+    files.addAll(newFiles);
+    fireIntervalAdded(this, firstIndex, files.size() - 1);
+  }
+
+  public void clear() {
+    int size = files.size();
+    if (size == 0) {
+      return;
+    }
+    // Replace rather than clear the list so that views handed out earlier keep their files.
+    files = new ArrayList<File>();
+    fireIntervalRemoved(this, 0, size - 1);
+  }
+}
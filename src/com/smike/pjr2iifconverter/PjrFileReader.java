@@ -0,0 +1,621 @@
+package com.smike.pjr2iifconverter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads and parses PJR files, optionally on a pool of worker threads, and hands the results to a
+ * {@link Handler} on the calling thread in the same order as the input files.
+ *
+ * At most {@code threadCount * QUEUE_DEPTH_PER_THREAD} files are read ahead of the handler, so
+ * memory stays bounded however many files there are.
+ *
+ * With {@link ReadMode#NIO}, each file is read whole into one of a pool of direct buffers, one
+ * per thread, and parsed straight out of it. Files of {@code MAP_THRESHOLD} bytes or more are
+ * memory-mapped instead.
+ *
+ * Archives among the files (see {@link ArchiveReader}) are read on the calling thread, and each
+ * entry whose name matches {@link Pjr2IifConverter#PJR_FILENAME_FILTER} is decompressed and
+ * parsed like a file of its own. Entries of up to {@code SPILL_THRESHOLD} bytes are held in
+ * memory, larger ones in a temporary file that is deleted once the entry has been parsed, so
+ * large journals in archives don't have to fit in memory. Entries that decompress to more than
+ * {@code MAX_ENTRY_BYTES} are refused.
+ */
+public class PjrFileReader {
+  public interface Handler {
+    /**
+     * @param file the PJR file, or the archive the PJR came from
+     * @param entryName the PJR's path within the archive, or null if it isn't from an archive
+     */
+    void handle(File file, String entryName, PjrRecord pjrRecord) throws Exception;
+  }
+
+  /**
+   * Parses a PJR from a stream, returning its record, or null if the records have been handed
+   * on as they were found.
+   */
+  private interface StreamParser {
+    PjrRecord parse(InputStream inputStream, String systemId) throws Exception;
+  }
+
+  private static final int QUEUE_DEPTH_PER_THREAD = 4;
+  private static final int MAP_THRESHOLD = 256 * 1024;
+  private static final int SPILL_THRESHOLD = 1024 * 1024;
+  private static final long MAX_ENTRY_BYTES = 4L * 1024 * 1024 * 1024;
+  private static final String SPILL_PREFIX = "pjr2iif-entry-";
+  // How many transactions of one journal may be parsed ahead of the handler.
+  private static final int TRANSACTION_QUEUE_CAPACITY = 256;
+  private static final PjrRecord END_OF_TRANSACTIONS = new PjrRecord(null, null, null, null);
+
+  private ParserEngine parserEngine;
+  private int threadCount;
+  private ReadMode readMode = ReadMode.STREAM;
+  private String transactionTag;
+  private ConversionMetrics metrics;
+  private PjrRecordCache recordCache;
+  private ByteBufferPool bufferPool;
+
+  public PjrFileReader(ParserEngine parserEngine, int threadCount) {
+    this.parserEngine = parserEngine;
+    this.threadCount = Math.max(1, threadCount);
+  }
+
+  public void setReadMode(ReadMode readMode) {
+    this.readMode = readMode;
+  }
+
+  /**
+   * Sets the name of the elements that each hold one transaction, so that every PJR is read as a
+   * journal of many transactions with {@link MultiTransactionPjrParser}, and the handler is
+   * called once for each transaction. Null, the default, means one transaction per PJR.
+   *
+   * Each journal is parsed on one thread, and at most {@code TRANSACTION_QUEUE_CAPACITY}
+   * transactions of each journal in the read-ahead window are held in memory, however large the
+   * journals are.
+   */
+  public void setTransactionTag(String transactionTag) {
+    this.transactionTag = transactionTag;
+  }
+
+  /**
+   * Sets where to record read and parse times, or null to not record them. With a transaction
+   * tag, parse times include the time spent waiting for the handler to take the transactions.
+   */
+  public void setMetrics(ConversionMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Sets a cache of records to reuse instead of parsing PJR files that haven't changed, and to
+   * add newly parsed records to. Only PJR files of one transaction are cached, not archives or
+   * journals.
+   */
+  public void setRecordCache(PjrRecordCache recordCache) {
+    this.recordCache = recordCache;
+  }
+
+  public void read(List<File> files, Handler handler) throws Exception {
+    bufferPool = readMode == ReadMode.NIO ? new ByteBufferPool(threadCount, true) : null;
+    PjrSources pjrSources = new PjrSources(files);
+    try {
+      if (transactionTag != null) {
+        readTransactions(pjrSources, handler);
+      } else if (threadCount == 1) {
+        StreamParser streamParser = newStreamParser(parserEngine.newParser());
+        PjrSource pjrSource;
+        while ((pjrSource = pjrSources.next()) != null) {
+          handler.handle(pjrSource.file, pjrSource.entryName,
+                         readRecord(streamParser, pjrSource));
+        }
+      } else {
+        read(pjrSources, handler);
+      }
+    } finally {
+      pjrSources.close();
+    }
+  }
+
+  private void read(PjrSources pjrSources, Handler handler) throws Exception {
+    int queueDepth = threadCount * QUEUE_DEPTH_PER_THREAD;
+    ThreadPoolExecutor executor = newExecutor(queueDepth);
+    final ThreadLocal<StreamParser> streamParsers = new ThreadLocal<StreamParser>();
+    try {
+      Deque<Future<PjrRecord>> window = new ArrayDeque<Future<PjrRecord>>(queueDepth);
+      Deque<PjrSource> windowSources = new ArrayDeque<PjrSource>(queueDepth);
+      boolean moreSources = true;
+      while (true) {
+        while (moreSources && window.size() < queueDepth) {
+          final PjrSource pjrSource = pjrSources.next();
+          if (pjrSource == null) {
+            moreSources = false;
+            break;
+          }
+          window.addLast(executor.submit(new Callable<PjrRecord>() {
+            @Override
+            public PjrRecord call() throws Exception {
+              StreamParser streamParser = streamParsers.get();
+              if (streamParser == null) {
+                streamParser = newStreamParser(parserEngine.newParser());
+                streamParsers.set(streamParser);
+              }
+              return readRecord(streamParser, pjrSource);
+            }
+          }));
+          windowSources.addLast(pjrSource);
+        }
+        if (window.isEmpty()) {
+          break;
+        }
+
+        PjrRecord pjrRecord = getResult(window.removeFirst());
+        PjrSource pjrSource = windowSources.removeFirst();
+        handler.handle(pjrSource.file, pjrSource.entryName, pjrRecord);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private void readTransactions(PjrSources pjrSources, final Handler handler) throws Exception {
+    if (threadCount == 1) {
+      MultiTransactionPjrParser multiTransactionPjrParser =
+          new MultiTransactionPjrParser(transactionTag);
+      PjrSource pjrSource;
+      while ((pjrSource = pjrSources.next()) != null) {
+        final PjrSource currentSource = pjrSource;
+        MultiTransactionPjrParser.RecordHandler recordHandler =
+            new MultiTransactionPjrParser.RecordHandler() {
+              @Override
+              public void handle(PjrRecord pjrRecord) throws Exception {
+                handleTransaction(handler, currentSource, pjrRecord);
+              }
+            };
+        read(newStreamParser(multiTransactionPjrParser, recordHandler), pjrSource);
+      }
+      return;
+    }
+
+    // Each journal in the window gets a bounded queue that its worker fills with transactions and
+    // ends with END_OF_TRANSACTIONS. The oldest journal's worker is always running, so the
+    // handler can always make progress.
+    int queueDepth = threadCount * QUEUE_DEPTH_PER_THREAD;
+    ThreadPoolExecutor executor = newExecutor(queueDepth);
+    final ThreadLocal<MultiTransactionPjrParser> multiTransactionPjrParsers =
+        new ThreadLocal<MultiTransactionPjrParser>();
+    try {
+      Deque<Future<PjrRecord>> window = new ArrayDeque<Future<PjrRecord>>(queueDepth);
+      Deque<BlockingQueue<PjrRecord>> windowTransactions =
+          new ArrayDeque<BlockingQueue<PjrRecord>>(queueDepth);
+      Deque<PjrSource> windowSources = new ArrayDeque<PjrSource>(queueDepth);
+      boolean moreSources = true;
+      while (true) {
+        while (moreSources && window.size() < queueDepth) {
+          final PjrSource pjrSource = pjrSources.next();
+          if (pjrSource == null) {
+            moreSources = false;
+            break;
+          }
+          final BlockingQueue<PjrRecord> transactions =
+              new ArrayBlockingQueue<PjrRecord>(TRANSACTION_QUEUE_CAPACITY);
+          window.addLast(executor.submit(new Callable<PjrRecord>() {
+            @Override
+            public PjrRecord call() throws Exception {
+              MultiTransactionPjrParser multiTransactionPjrParser =
+                  multiTransactionPjrParsers.get();
+              if (multiTransactionPjrParser == null) {
+                multiTransactionPjrParser = new MultiTransactionPjrParser(transactionTag);
+                multiTransactionPjrParsers.set(multiTransactionPjrParser);
+              }
+              MultiTransactionPjrParser.RecordHandler recordHandler =
+                  new MultiTransactionPjrParser.RecordHandler() {
+                    @Override
+                    public void handle(PjrRecord pjrRecord) throws InterruptedException {
+                      transactions.put(pjrRecord);
+                    }
+                  };
+              try {
+                return read(newStreamParser(multiTransactionPjrParser, recordHandler), pjrSource);
+              } finally {
+                transactions.put(END_OF_TRANSACTIONS);
+              }
+            }
+          }));
+          windowTransactions.addLast(transactions);
+          windowSources.addLast(pjrSource);
+        }
+        if (window.isEmpty()) {
+          break;
+        }
+
+        BlockingQueue<PjrRecord> transactions = windowTransactions.removeFirst();
+        PjrSource pjrSource = windowSources.removeFirst();
+        PjrRecord pjrRecord;
+        while ((pjrRecord = transactions.take()) != END_OF_TRANSACTIONS) {
+          handleTransaction(handler, pjrSource, pjrRecord);
+        }
+        // Rethrows whatever stopped the journal from being read.
+        getResult(window.removeFirst());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private void handleTransaction(Handler handler, PjrSource pjrSource, PjrRecord pjrRecord)
+      throws Exception {
+    if (metrics != null) {
+      metrics.addFilesSeen(1);
+    }
+    handler.handle(pjrSource.file, pjrSource.entryName, pjrRecord);
+  }
+
+  private ThreadPoolExecutor newExecutor(int queueDepth) {
+    // The window never holds more tasks than the pool can queue, so submits never get rejected.
+    return new ThreadPoolExecutor(
+        threadCount, threadCount, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(queueDepth), new WorkerThreadFactory());
+  }
+
+  private static <T> T getResult(Future<T> future) throws Exception {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      throw e;
+    }
+  }
+
+  private static StreamParser newStreamParser(final PjrParser pjrParser) {
+    return new StreamParser() {
+      @Override
+      public PjrRecord parse(InputStream inputStream, String systemId) throws Exception {
+        return pjrParser.parse(inputStream, systemId);
+      }
+    };
+  }
+
+  private static StreamParser newStreamParser(
+      final MultiTransactionPjrParser multiTransactionPjrParser,
+      final MultiTransactionPjrParser.RecordHandler recordHandler) {
+    return new StreamParser() {
+      @Override
+      public PjrRecord parse(InputStream inputStream, String systemId) throws Exception {
+        multiTransactionPjrParser.parse(inputStream, systemId, recordHandler);
+        return null;
+      }
+    };
+  }
+
+  // Reads a PJR of one transaction, going to the record cache first if it's a plain file.
+  private PjrRecord readRecord(StreamParser streamParser, PjrSource pjrSource) throws Exception {
+    if (recordCache == null || pjrSource.entryName != null) {
+      return read(streamParser, pjrSource);
+    }
+    File file = pjrSource.file;
+    long length = file.length();
+    long lastModified = file.lastModified();
+    PjrRecord pjrRecord = recordCache.get(file, length, lastModified);
+    if (pjrRecord == null) {
+      pjrRecord = read(streamParser, file);
+      recordCache.put(file, length, lastModified, pjrRecord);
+    }
+    return pjrRecord;
+  }
+
+  private PjrRecord read(StreamParser streamParser, PjrSource pjrSource) throws Exception {
+    if (pjrSource.entryName == null) {
+      return read(streamParser, pjrSource.file);
+    }
+
+    long startNanos = metrics == null ? 0 : System.nanoTime();
+    InputStream inputStream = pjrSource.spillFile == null ?
+        new ByteArrayInputStream(pjrSource.data) :
+        new BufferedInputStream(new FileInputStream(pjrSource.spillFile));
+    try {
+      return streamParser.parse(inputStream,
+                                pjrSource.file.toURI() + "!/" + pjrSource.entryName);
+    } catch (InterruptedException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException("Unable to parse " + pjrSource + ": " + e, e);
+    } finally {
+      inputStream.close();
+      if (pjrSource.spillFile != null) {
+        pjrSource.spillFile.delete();
+      }
+      if (metrics != null) {
+        metrics.recordStage(ConversionMetrics.Stage.PARSE, System.nanoTime() - startNanos);
+      }
+    }
+  }
+
+  private PjrRecord read(StreamParser streamParser, File file) throws Exception {
+    if (readMode == ReadMode.NIO) {
+      return readBuffered(streamParser, file);
+    }
+    if (metrics == null) {
+      InputStream inputStream = new BufferedInputStream(new FileInputStream(file));
+      try {
+        return streamParser.parse(inputStream, file.toURI().toString());
+      } finally {
+        inputStream.close();
+      }
+    }
+
+    long startNanos = System.nanoTime();
+    TimingInputStream timingInputStream = new TimingInputStream(new FileInputStream(file));
+    InputStream inputStream = new BufferedInputStream(timingInputStream);
+    try {
+      return streamParser.parse(inputStream, file.toURI().toString());
+    } finally {
+      inputStream.close();
+      long readNanos = timingInputStream.getNanos();
+      metrics.recordStage(ConversionMetrics.Stage.READ, readNanos);
+      metrics.recordStage(ConversionMetrics.Stage.PARSE,
+                          System.nanoTime() - startNanos - readNanos);
+    }
+  }
+
+  private PjrRecord readBuffered(StreamParser streamParser, File file) throws Exception {
+    long startNanos = metrics == null ? 0 : System.nanoTime();
+    ByteBuffer buffer;
+    boolean pooled;
+    FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      long size = fileChannel.size();
+      pooled = size < MAP_THRESHOLD;
+      if (pooled) {
+        buffer = bufferPool.acquire((int) size);
+        while (buffer.hasRemaining() && fileChannel.read(buffer) != -1) {
+          // Keep reading until the buffer is full or the file turns out to be shorter.
+        }
+        buffer.flip();
+      } else {
+        // The pages are read as the parser touches them, so that time counts as parsing.
+        buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      }
+    } finally {
+      fileChannel.close();
+    }
+
+    long readNanos = metrics == null ? 0 : System.nanoTime() - startNanos;
+    try {
+      return streamParser.parse(new ByteBufferInputStream(buffer), file.toURI().toString());
+    } finally {
+      if (pooled) {
+        bufferPool.release(buffer);
+      }
+      if (metrics != null) {
+        metrics.recordStage(ConversionMetrics.Stage.READ, readNanos);
+        metrics.recordStage(ConversionMetrics.Stage.PARSE,
+                            System.nanoTime() - startNanos - readNanos);
+      }
+    }
+  }
+
+  /**
+   * A PJR file, or a PJR that has been read out of an archive into memory or a temporary file.
+   */
+  private static class PjrSource {
+    private File file;
+    private String entryName;
+    private byte[] data;
+    private File spillFile;
+
+    public PjrSource(File file, String entryName, byte[] data, File spillFile) {
+      this.file = file;
+      this.entryName = entryName;
+      this.data = data;
+      this.spillFile = spillFile;
+    }
+
+    @Override
+    public String toString() {
+      return entryName == null ? file.toString() : file + "!/" + entryName;
+    }
+  }
+
+  /**
+   * Goes through the files, and through the PJR entries of those that are archives.
+   */
+  private class PjrSources implements Closeable {
+    private Iterator<File> fileIterator;
+    private File archiveFile;
+    private ArchiveReader archiveReader;
+    private byte[] copyBuffer = new byte[8 * 1024];
+    // Temporary files of entries that may not have been parsed yet, to delete on close.
+    private List<File> spillFiles = new ArrayList<File>();
+
+    public PjrSources(List<File> files) {
+      fileIterator = files.iterator();
+    }
+
+    /**
+     * Returns the next PJR, or null if there are no more.
+     */
+    public PjrSource next() throws IOException {
+      while (true) {
+        if (archiveReader != null) {
+          PjrSource pjrSource = nextEntry();
+          if (pjrSource != null) {
+            return pjrSource;
+          }
+          archiveReader.close();
+          archiveReader = null;
+        }
+        if (!fileIterator.hasNext()) {
+          return null;
+        }
+        File file = fileIterator.next();
+        if (!ArchiveReader.isArchive(file.getName())) {
+          return new PjrSource(file, null, null, null);
+        }
+        archiveFile = file;
+        archiveReader = ArchiveReader.open(file);
+      }
+    }
+
+    private PjrSource nextEntry() throws IOException {
+      String entryName = null;
+      try {
+        while ((entryName = archiveReader.nextEntry()) != null) {
+          if (!Pjr2IifConverter.PJR_FILENAME_FILTER.accept(
+                   archiveFile, ArchiveReader.getFileName(entryName))) {
+            continue;
+          }
+          if (metrics != null && transactionTag == null) {
+            metrics.addFilesSeen(1);
+          }
+          long startNanos = metrics == null ? 0 : System.nanoTime();
+          PjrSource pjrSource = readEntry(entryName);
+          if (metrics != null) {
+            metrics.recordStage(ConversionMetrics.Stage.READ, System.nanoTime() - startNanos);
+          }
+          return pjrSource;
+        }
+      } catch (IOException e) {
+        String location =
+            entryName == null ? archiveFile.toString() : archiveFile + "!/" + entryName;
+        throw new IOException("Unable to read " + location + ": " + e, e);
+      }
+      return null;
+    }
+
+    private PjrSource readEntry(String entryName) throws IOException {
+      InputStream inputStream = archiveReader.getInputStream();
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+      File spillFile = null;
+      OutputStream spillStream = null;
+      try {
+        long size = 0;
+        int count;
+        while ((count = inputStream.read(copyBuffer)) != -1) {
+          size += count;
+          if (size > MAX_ENTRY_BYTES) {
+            throw new IOException(
+                "Entry is larger than " + MAX_ENTRY_BYTES + " bytes once decompressed");
+          }
+          if (spillStream == null && size > SPILL_THRESHOLD) {
+            spillFile = File.createTempFile(SPILL_PREFIX, ".xml");
+            spillFiles.add(spillFile);
+            spillStream = new BufferedOutputStream(new FileOutputStream(spillFile));
+            outputStream.writeTo(spillStream);
+            outputStream = null;
+          }
+          if (spillStream == null) {
+            outputStream.write(copyBuffer, 0, count);
+          } else {
+            spillStream.write(copyBuffer, 0, count);
+          }
+        }
+      } finally {
+        if (spillStream != null) {
+          spillStream.close();
+        }
+      }
+      if (spillFile != null) {
+        return new PjrSource(archiveFile, entryName, null, spillFile);
+      }
+      return new PjrSource(archiveFile, entryName, outputStream.toByteArray(), null);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (archiveReader != null) {
+        archiveReader.close();
+        archiveReader = null;
+      }
+      // Parsed entries have already been deleted; these are the ones a failure left behind.
+      for (File spillFile : spillFiles) {
+        spillFile.delete();
+      }
+      spillFiles.clear();
+    }
+  }
+
+  /**
+   * Adds up the time spent opening, reading and closing the underlying stream.
+   */
+  private static class TimingInputStream extends FilterInputStream {
+    private long nanos;
+
+    public TimingInputStream(FileInputStream fileInputStream) {
+      super(fileInputStream);
+    }
+
+    public long getNanos() {
+      return nanos;
+    }
+
+    @Override
+    public int read() throws IOException {
+      long startNanos = System.nanoTime();
+      try {
+        return super.read();
+      } finally {
+        nanos += System.nanoTime() - startNanos;
+      }
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+      long startNanos = System.nanoTime();
+      try {
+        return super.read(bytes, offset, length);
+      } finally {
+        nanos += System.nanoTime() - startNanos;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      long startNanos = System.nanoTime();
+      try {
+        super.close();
+      } finally {
+        nanos += System.nanoTime() - startNanos;
+      }
+    }
+  }
+
+  private static class WorkerThreadFactory implements ThreadFactory {
+    private AtomicInteger threadNumber = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "pjr-reader-" + threadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
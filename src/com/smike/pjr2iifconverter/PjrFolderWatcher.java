@@ -0,0 +1,370 @@
+package com.smike.pjr2iifconverter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Watches a folder for new PJR files and converts them in small batches as they arrive, either
+ * appending to one IIF file or rolling over to a new IIF file for every batch.
+ *
+ * A file is only converted once its size and modification time have stopped changing for a
+ * whole interval, so files that are still being written are left alone.
+ */
+public class PjrFolderWatcher {
+  private static Logger logger = Logger.getLogger(PjrFolderWatcher.class.getName());
+
+  // How many times a PJR may fail to convert on its own before it's left alone.
+  private static final int MAX_FILE_ATTEMPTS = 3;
+
+  public interface ConverterFactory {
+    Pjr2IifConverter create(List<File> pjrFiles);
+  }
+
+  private File pjrDirectory;
+  private File iifFile;
+  private ConverterFactory converterFactory;
+
+  private long intervalMillis = TimeUnit.SECONDS.toMillis(5);
+  private boolean rollover;
+  private boolean ignoreNegativeTransactions;
+  private SourceCleaner sourceCleaner;
+  private ProcessedJournal journal;
+
+  // Files that have shown up but might still be being written, with their last seen state.
+  private Map<File, FileState> pendingFiles = new LinkedHashMap<File, FileState>();
+  // Files that have been converted but not cleaned up, so later events for them are ignored.
+  // They're forgotten once they're deleted, so the set only holds what's still in the folder.
+  private Set<File> convertedFiles = new HashSet<File>();
+  // How many times each file has failed to convert on its own.
+  private Map<File, Integer> failureCounts = new HashMap<File, Integer>();
+
+  private volatile boolean stopped;
+
+  public PjrFolderWatcher(File pjrDirectory, File iifFile, ConverterFactory converterFactory) {
+    this.pjrDirectory = pjrDirectory;
+    this.iifFile = iifFile;
+    this.converterFactory = converterFactory;
+  }
+
+  public void setIntervalMillis(long intervalMillis) {
+    this.intervalMillis = intervalMillis;
+  }
+
+  /**
+   * Sets whether each batch goes into a new, timestamped IIF file next to the output file
+   * instead of being appended to it.
+   */
+  public void setRollover(boolean rollover) {
+    this.rollover = rollover;
+  }
+
+  public void setIgnoreNegativeTransactions(boolean ignoreNegativeTransactions) {
+    this.ignoreNegativeTransactions = ignoreNegativeTransactions;
+  }
+
+  /**
+   * Sets what deletes or archives PJR files once each batch has been committed, or null to leave
+   * them in the folder. If they are cleaned up, PJR files that are already in the folder at
+   * startup are converted too, since they can't have been converted before.
+   */
+  public void setSourceCleaner(SourceCleaner sourceCleaner) {
+    this.sourceCleaner = sourceCleaner;
+  }
+
+  /**
+   * Sets the journal that the converters use, so that it can be committed after each batch. With
+   * a journal, PJR files already in the folder at startup are converted unless the journal has
+   * seen them.
+   */
+  public void setJournal(ProcessedJournal journal) {
+    this.journal = journal;
+  }
+
+  public void stop() {
+    stopped = true;
+  }
+
+  /**
+   * Watches the folder until {@link #stop()} is called or the thread is interrupted.
+   */
+  public void run() throws IOException, InterruptedException {
+    WatchService watchService = FileSystems.getDefault().newWatchService();
+    try {
+      pjrDirectory.toPath().register(watchService,
+                                     StandardWatchEventKinds.ENTRY_CREATE,
+                                     StandardWatchEventKinds.ENTRY_MODIFY,
+                                     StandardWatchEventKinds.ENTRY_DELETE);
+      if (sourceCleaner != null || journal != null) {
+        scanDirectory();
+      } else {
+        // Whatever is already there has presumably been converted by an earlier run.
+        File[] existingFiles = listPjrFiles();
+        Collections.addAll(convertedFiles, existingFiles);
+      }
+      logger.info("Watching " + pjrDirectory + " for PJR files.");
+
+      long nextBatchMillis = System.currentTimeMillis() + intervalMillis;
+      while (!stopped) {
+        long waitMillis = Math.max(0, nextBatchMillis - System.currentTimeMillis());
+        WatchKey watchKey = watchService.poll(waitMillis, TimeUnit.MILLISECONDS);
+        if (watchKey != null) {
+          handleEvents(watchKey);
+          if (!watchKey.reset()) {
+            throw new IOException(pjrDirectory + " is no longer accessible.");
+          }
+        }
+
+        if (System.currentTimeMillis() >= nextBatchMillis) {
+          convertBatch(takeStableFiles());
+          nextBatchMillis = System.currentTimeMillis() + intervalMillis;
+        }
+      }
+    } finally {
+      watchService.close();
+    }
+  }
+
+  private void handleEvents(WatchKey watchKey) {
+    for (WatchEvent<?> watchEvent : watchKey.pollEvents()) {
+      if (watchEvent.kind() == StandardWatchEventKinds.OVERFLOW) {
+        // Events were lost, so look at everything that's there.
+        scanDirectory();
+        continue;
+      }
+
+      Path name = (Path) watchEvent.context();
+      if (!Pjr2IifConverter.PJR_INPUT_FILENAME_FILTER.accept(pjrDirectory, name.toString())) {
+        continue;
+      }
+      File file = new File(pjrDirectory, name.toString());
+      if (watchEvent.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+        // A new file of the same name will be a new PJR.
+        convertedFiles.remove(file);
+        pendingFiles.remove(file);
+        failureCounts.remove(file);
+      } else {
+        addPendingFile(file);
+      }
+    }
+  }
+
+  private void scanDirectory() {
+    File[] files = listPjrFiles();
+    // Deletions may have been among the lost events.
+    Set<File> existingFiles = new HashSet<File>(Arrays.asList(files));
+    convertedFiles.retainAll(existingFiles);
+    failureCounts.keySet().retainAll(existingFiles);
+    for (File file : files) {
+      addPendingFile(file);
+    }
+  }
+
+  private File[] listPjrFiles() {
+    File[] files = pjrDirectory.listFiles(Pjr2IifConverter.PJR_INPUT_FILENAME_FILTER);
+    return files == null ? new File[0] : files;
+  }
+
+  private void addPendingFile(File file) {
+    if (!convertedFiles.contains(file) && !pendingFiles.containsKey(file)) {
+      // Remember an impossible state so the file has to be seen unchanged at least once.
+      pendingFiles.put(file, new FileState(-1, -1));
+    }
+  }
+
+  private List<File> takeStableFiles() {
+    List<File> stableFiles = new ArrayList<File>();
+    Iterator<Map.Entry<File, FileState>> iterator = pendingFiles.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<File, FileState> entry = iterator.next();
+      File file = entry.getKey();
+      if (!file.isFile()) {
+        iterator.remove();
+        continue;
+      }
+
+      FileState fileState = new FileState(file.length(), file.lastModified());
+      if (fileState.equals(entry.getValue())) {
+        stableFiles.add(file);
+        iterator.remove();
+      } else {
+        entry.setValue(fileState);
+      }
+    }
+    Collections.sort(stableFiles);
+    return stableFiles;
+  }
+
+  private void convertBatch(List<File> pjrFiles) {
+    if (pjrFiles.isEmpty() || convertFiles(pjrFiles)) {
+      return;
+    }
+    if (pjrFiles.size() == 1) {
+      fileFailed(pjrFiles.get(0));
+      return;
+    }
+    // One bad PJR mustn't hold up every batch it lands in, so each is tried on its own.
+    logger.info("Converting the " + pjrFiles.size() + " PJR files one at a time.");
+    for (File pjrFile : pjrFiles) {
+      if (!convertFiles(Collections.singletonList(pjrFile))) {
+        fileFailed(pjrFile);
+      }
+    }
+  }
+
+  private void fileFailed(File pjrFile) {
+    Integer failureCount = failureCounts.get(pjrFile);
+    failureCount = failureCount == null ? 1 : failureCount + 1;
+    if (failureCount < MAX_FILE_ATTEMPTS) {
+      failureCounts.put(pjrFile, failureCount);
+      // Try again with the next batch.
+      addPendingFile(pjrFile);
+      return;
+    }
+    failureCounts.remove(pjrFile);
+    // It stays in the folder to be looked at, but isn't tried again while it's there.
+    logger.severe("Giving up on " + pjrFile + " after " + failureCount + " failed conversions.");
+    convertedFiles.add(pjrFile);
+  }
+
+  // Returns false if the files couldn't be converted. Files that were converted but not
+  // committed to the journal are put back to be tried again by themselves.
+  private boolean convertFiles(List<File> pjrFiles) {
+    File outputFile = rollover ? getRolloverFile(iifFile) : iifFile;
+    // Appending to a file that already has transactions must not repeat the header.
+    boolean append = !rollover && iifFile.length() > 0;
+    Pjr2IifConverter pjr2IifConverter = converterFactory.create(pjrFiles);
+    pjr2IifConverter.setWriteHeader(!append);
+    boolean written = false;
+    try {
+      if (append) {
+        appendBatch(pjr2IifConverter, outputFile);
+      } else {
+        AtomicOutputFile atomicOutputFile = new AtomicOutputFile(outputFile);
+        try {
+          pjr2IifConverter.convert(atomicOutputFile.getWriter(), ignoreNegativeTransactions);
+          atomicOutputFile.commit();
+        } finally {
+          atomicOutputFile.close();
+        }
+      }
+      written = true;
+      if (journal != null) {
+        journal.commit();
+      }
+    } catch (Exception e) {
+      logger.severe("Unable to convert " + pjrFiles.size() + " PJR files to " + outputFile +
+          ": " + e);
+      if (!written) {
+        if (journal != null) {
+          // None of the batch made it, so none of it may be skipped next time.
+          journal.discardPending();
+        }
+        return false;
+      }
+      // The files are fine. Their journal entries stay pending, so the retry skips them and
+      // commits the entries.
+      for (File pjrFile : pjrFiles) {
+        addPendingFile(pjrFile);
+      }
+      return true;
+    }
+    logger.info("Converted " + pjr2IifConverter.getFileCount() + " PJR files into " +
+        pjr2IifConverter.getTransactionCount() + " transactions in " + outputFile + ".");
+    failureCounts.keySet().removeAll(pjrFiles);
+
+    if (sourceCleaner == null) {
+      convertedFiles.addAll(pjrFiles);
+      return true;
+    }
+    try {
+      // Files that couldn't be cleaned up stay where they are, but mustn't be converted again.
+      convertedFiles.addAll(sourceCleaner.clean(pjrFiles).getFailures().keySet());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      convertedFiles.addAll(pjrFiles);
+    }
+    return true;
+  }
+
+  // Appends the batch and syncs it to disk. If the conversion fails, the file is cut back to its
+  // old length so that a retry doesn't leave half a batch in front of the whole one.
+  private void appendBatch(Pjr2IifConverter pjr2IifConverter, File outputFile)
+      throws Exception {
+    FileOutputStream outputStream = new FileOutputStream(outputFile, true);
+    try {
+      long originalLength = outputStream.getChannel().size();
+      try {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream));
+        pjr2IifConverter.convert(writer, ignoreNegativeTransactions);
+        writer.flush();
+        outputStream.getFD().sync();
+      } catch (Exception e) {
+        outputStream.getChannel().truncate(originalLength);
+        throw e;
+      }
+    } finally {
+      outputStream.close();
+    }
+  }
+
+  /**
+   * Returns a file next to the IIF file, named after it with the current time added.
+   */
+  static File getRolloverFile(File iifFile) {
+    String name = iifFile.getName();
+    int indexOfDot = name.lastIndexOf('.');
+    String baseName = indexOfDot == -1 ? name : name.substring(0, indexOfDot);
+    String extension = indexOfDot == -1 ? "" : name.substring(indexOfDot);
+    String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+    return new File(iifFile.getAbsoluteFile().getParentFile(),
+                    baseName + "-" + timestamp + extension);
+  }
+
+  private static class FileState {
+    private long length;
+    private long lastModified;
+
+    public FileState(long length, long lastModified) {
+      this.length = length;
+      this.lastModified = lastModified;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+      if (!(object instanceof FileState)) {
+        return false;
+      }
+      FileState fileState = (FileState) object;
+      return length == fileState.length && lastModified == fileState.lastModified;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (length * 31 + lastModified);
+    }
+  }
+}
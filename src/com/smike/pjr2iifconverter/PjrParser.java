@@ -0,0 +1,25 @@
+package com.smike.pjr2iifconverter;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Extracts the first ReceiptDate, TransactionID, TransactionTotalNetAmount and AccountID from a
+ * PJR document. Instances are not thread-safe.
+ */
+public interface PjrParser {
+  String RECEIPT_DATE_TAG = "ReceiptDate";
+  String TRANSACTION_ID_TAG = "TransactionID";
+  String TRANSACTION_TOTAL_NET_AMOUNT_TAG = "TransactionTotalNetAmount";
+  String ACCOUNT_ID_TAG = "AccountID";
+
+  /**
+   * @param systemId identifies the document in error messages and resolves relative references.
+   */
+  PjrRecord parse(InputStream inputStream, String systemId)
+      throws IOException, SAXException, XMLStreamException;
+}
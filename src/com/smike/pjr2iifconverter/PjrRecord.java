@@ -0,0 +1,44 @@
+package com.smike.pjr2iifconverter;
+
+/**
+ * The raw text of the fields we extract from a PJR file, before any lookups or conversions.
+ * A field is null if its tag was not present in the file.
+ */
+public class PjrRecord {
+  private String receiptDate;
+  private String transactionId;
+  private String transactionTotalNetAmount;
+  private String accountId;
+
+  public PjrRecord(String receiptDate, String transactionId, String transactionTotalNetAmount,
+      String accountId) {
+    this.receiptDate = receiptDate;
+    this.transactionId = transactionId;
+    this.transactionTotalNetAmount = transactionTotalNetAmount;
+    this.accountId = accountId;
+  }
+
+  public String getReceiptDate() {
+    return receiptDate;
+  }
+
+  public String getTransactionId() {
+    return transactionId;
+  }
+
+  public String getTransactionTotalNetAmount() {
+    return transactionTotalNetAmount;
+  }
+
+  public String getAccountId() {
+    return accountId;
+  }
+
+  public String toString() {
+    return "{receiptDate: " + this.getReceiptDate() +
+        ", transactionId: " + this.getTransactionId() +
+        ", transactionTotalNetAmount: " + this.getTransactionTotalNetAmount() +
+        ", accountId: " + this.getAccountId() +
+        "}";
+  }
+}
@@ -0,0 +1,262 @@
+package com.smike.pjr2iifconverter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Remembers the fields extracted from PJR files, so that converting the same files again, say
+ * with a corrected account ID map, skips reading and parsing them. A file's record is only
+ * reused while the file's size and modification time are unchanged.
+ *
+ * The cache is one append-only binary file. After a header, each record is an int length
+ * followed by the file's path, size and modification time, a byte saying which fields are
+ * present, and the fields themselves. A record cut short by a crash is dropped the next time
+ * the cache is opened, and the file is rewritten without superseded records once they outnumber
+ * the current ones.
+ *
+ * Safe for use by several threads at once.
+ */
+public class PjrRecordCache implements Closeable, Flushable {
+  private static Logger logger = Logger.getLogger(PjrRecordCache.class.getName());
+
+  private static final int MAGIC = 0x504a5243;
+  // Bump this whenever the way fields are extracted changes, so that old records aren't reused.
+  private static final int VERSION = 1;
+  private static final int HEADER_LENGTH = 8;
+  // The path and four fields, each at most 64 KB of modified UTF-8 after its length, then the
+  // size, modification time and present fields. Anything longer is corrupt.
+  private static final int MAX_RECORD_LENGTH = 5 * (2 + 65535) + 8 + 8 + 1;
+
+  private File file;
+  private Map<String, Entry> entries = new HashMap<String, Entry>();
+  private DataOutputStream outputStream;
+  private ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(256);
+  private DataOutputStream recordOutputStream = new DataOutputStream(recordBytes);
+
+  private int hitCount;
+  private int missCount;
+
+  /**
+   * Opens the cache file, creating it if it doesn't exist yet.
+   */
+  public PjrRecordCache(File file) throws IOException {
+    this.file = file;
+    int recordCount = load();
+    if (recordCount > 2 * entries.size() + 1024) {
+      rewrite();
+    }
+    outputStream = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024));
+    if (file.length() == 0) {
+      outputStream.writeInt(MAGIC);
+      outputStream.writeInt(VERSION);
+    }
+  }
+
+  /**
+   * Returns the record for the file, or null if there isn't one for a file of this size and
+   * modification time.
+   */
+  public synchronized PjrRecord get(File pjrFile, long length, long lastModified) {
+    Entry entry = entries.get(pjrFile.getAbsolutePath());
+    if (entry != null && entry.length == length && entry.lastModified == lastModified) {
+      hitCount++;
+      return entry.pjrRecord;
+    }
+    missCount++;
+    return null;
+  }
+
+  /**
+   * Remembers the record for the file.
+   *
+   * @param length the size of the file before it was read
+   * @param lastModified the modification time of the file before it was read
+   */
+  public synchronized void put(File pjrFile, long length, long lastModified, PjrRecord pjrRecord)
+      throws IOException {
+    String path = pjrFile.getAbsolutePath();
+    Entry entry = new Entry(length, lastModified, pjrRecord);
+    try {
+      writeRecord(outputStream, path, entry);
+    } catch (UTFDataFormatException e) {
+      // A field of 64 KB or more, which no real PJR has. It just won't be cached.
+      return;
+    }
+    entries.put(path, entry);
+  }
+
+  public synchronized int getHitCount() {
+    return hitCount;
+  }
+
+  public synchronized int getMissCount() {
+    return missCount;
+  }
+
+  /**
+   * Writes the records put so far to the file. They're otherwise written as the buffer fills,
+   * and when the cache is closed.
+   */
+  @Override
+  public synchronized void flush() throws IOException {
+    outputStream.flush();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (hitCount + missCount > 0) {
+      logger.info("Reused " + hitCount + " of " + (hitCount + missCount) +
+          " cached PJR records.");
+    }
+    outputStream.close();
+  }
+
+  // Returns how many records were read, superseded ones included.
+  private int load() throws IOException {
+    DataInputStream inputStream;
+    try {
+      inputStream = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+    } catch (FileNotFoundException e) {
+      return 0;
+    }
+
+    int recordCount = 0;
+    // The end of the last complete record.
+    long validLength = 0;
+    try {
+      if (inputStream.readInt() != MAGIC || inputStream.readInt() != VERSION) {
+        logger.info(file + " is from another version. Starting a new cache.");
+      } else {
+        validLength = HEADER_LENGTH;
+        byte[] record = new byte[256];
+        while (true) {
+          int recordLength = inputStream.readInt();
+          if (recordLength < 0 || recordLength > MAX_RECORD_LENGTH) {
+            throw new IOException("Invalid record length " + recordLength);
+          }
+          if (record.length < recordLength) {
+            record = new byte[Math.max(recordLength, record.length * 2)];
+          }
+          inputStream.readFully(record, 0, recordLength);
+          readRecord(new DataInputStream(new ByteArrayInputStream(record, 0, recordLength)));
+          recordCount++;
+          validLength += 4 + recordLength;
+        }
+      }
+    } catch (EOFException e) {
+      // The end of the file, or of what was written before a crash.
+    } catch (IOException e) {
+      logger.warning("Ignoring the rest of " + file + ": " + e);
+    } finally {
+      inputStream.close();
+    }
+
+    if (validLength < file.length()) {
+      // Cut off whatever can't be read, so new records aren't appended after it.
+      RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+      try {
+        randomAccessFile.setLength(validLength);
+      } finally {
+        randomAccessFile.close();
+      }
+    }
+    return recordCount;
+  }
+
+  private void readRecord(DataInputStream inputStream) throws IOException {
+    String path = inputStream.readUTF();
+    long length = inputStream.readLong();
+    long lastModified = inputStream.readLong();
+    int present = inputStream.readUnsignedByte();
+    String[] fields = new String[4];
+    for (int i = 0; i < fields.length; i++) {
+      if ((present & (1 << i)) != 0) {
+        fields[i] = inputStream.readUTF();
+      }
+    }
+    entries.put(path, new Entry(length, lastModified,
+                                new PjrRecord(fields[0], fields[1], fields[2], fields[3])));
+  }
+
+  private void writeRecord(DataOutputStream outputStream, String path, Entry entry)
+      throws IOException {
+    PjrRecord pjrRecord = entry.pjrRecord;
+    String[] fields = {
+      pjrRecord.getReceiptDate(), pjrRecord.getTransactionId(),
+      pjrRecord.getTransactionTotalNetAmount(), pjrRecord.getAccountId()
+    };
+    int present = 0;
+    for (int i = 0; i < fields.length; i++) {
+      if (fields[i] != null) {
+        present |= 1 << i;
+      }
+    }
+
+    recordBytes.reset();
+    recordOutputStream.writeUTF(path);
+    recordOutputStream.writeLong(entry.length);
+    recordOutputStream.writeLong(entry.lastModified);
+    recordOutputStream.writeByte(present);
+    for (String field : fields) {
+      if (field != null) {
+        recordOutputStream.writeUTF(field);
+      }
+    }
+    recordOutputStream.flush();
+    outputStream.writeInt(recordBytes.size());
+    recordBytes.writeTo(outputStream);
+  }
+
+  private void rewrite() throws IOException {
+    File tempFile =
+        File.createTempFile(file.getName() + ".", ".tmp", file.getAbsoluteFile().getParentFile());
+    try {
+      DataOutputStream compactedOutputStream = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024));
+      try {
+        compactedOutputStream.writeInt(MAGIC);
+        compactedOutputStream.writeInt(VERSION);
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+          writeRecord(compactedOutputStream, entry.getKey(), entry.getValue());
+        }
+      } finally {
+        compactedOutputStream.close();
+      }
+      AtomicOutputFile.moveIntoPlace(tempFile, file);
+    } finally {
+      tempFile.delete();
+    }
+    logger.info("Compacted " + file + " to " + entries.size() + " records.");
+  }
+
+  private static class Entry {
+    private long length;
+    private long lastModified;
+    private PjrRecord pjrRecord;
+
+    public Entry(long length, long lastModified, PjrRecord pjrRecord) {
+      this.length = length;
+      this.lastModified = lastModified;
+      this.pjrRecord = pjrRecord;
+    }
+  }
+}
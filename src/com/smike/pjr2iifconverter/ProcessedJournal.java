@@ -0,0 +1,434 @@
+package com.smike.pjr2iifconverter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Remembers which PJR files and TransactionIDs have already been converted, so that re-runs over
+ * the same directory only convert new files and never repeat a transaction.
+ *
+ * The journal is a directory holding three files:
+ * <ul>
+ * <li>{@code files.log}, an append-only list of converted files with their size and
+ *     modification time. A file that has changed since it was converted is converted again.
+ * <li>{@code transaction_ids.dat}, the sorted 64-bit hashes of converted TransactionIDs. It is
+ *     searched on disk, with a Bloom filter in front so that new IDs, which are the common case,
+ *     rarely touch it.
+ * <li>{@code new_transaction_ids.dat}, the hashes committed since {@code transaction_ids.dat}
+ *     was last rewritten, appended in batches and also held in memory. They are merged into
+ *     {@code transaction_ids.dat} once there are more than a small fraction of it, so a commit
+ *     costs about as much as what it adds rather than the whole history.
+ * </ul>
+ *
+ * Nothing is written until {@link #commit()}, which should only be called once the IIF holding
+ * the transactions has been written. If the IIF can't be written, {@link #discardPending()} has
+ * to be called instead, or the files and transactions would be skipped by the next conversion.
+ */
+public class ProcessedJournal {
+  private static Logger logger = Logger.getLogger(ProcessedJournal.class.getName());
+
+  private static final String FILES_LOG = "files.log";
+  private static final String TRANSACTION_IDS = "transaction_ids.dat";
+  private static final String NEW_TRANSACTION_IDS = "new_transaction_ids.dat";
+
+  // New IDs are merged once there are more than an eighth of the old ones, within these bounds.
+  private static final int MIN_MERGE_THRESHOLD = 1 << 16;
+  private static final int MAX_MERGE_THRESHOLD = 1 << 20;
+
+  private static final int BLOOM_FILTER_BITS_PER_ID = 10;
+  private static final int BLOOM_FILTER_HASHES = 7;
+
+  private File directory;
+
+  private Map<String, FileState> processedFiles = new HashMap<String, FileState>();
+  private FileChannel transactionIdsChannel;
+  private long transactionIdCount;
+  // Sorted, and not yet merged into transaction_ids.dat.
+  private long[] newTransactionIds;
+  // Holds every committed ID. It is rebuilt, larger, by the merge after its capacity is reached.
+  private long[] bloomFilter;
+  private long bloomFilterCapacity;
+
+  private Map<String, FileState> pendingFiles = new HashMap<String, FileState>();
+  private Set<Long> pendingTransactionIds = new HashSet<Long>();
+
+  public ProcessedJournal(File directory) throws IOException {
+    this.directory = directory;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create journal directory " + directory);
+    }
+    loadFiles();
+    openTransactionIds();
+  }
+
+  /**
+   * Returns whether the file has been converted before and hasn't changed since.
+   */
+  public boolean isProcessed(File file) {
+    FileState fileState = processedFiles.get(getKey(file));
+    if (fileState == null) {
+      fileState = pendingFiles.get(getKey(file));
+    }
+    return fileState != null &&
+        fileState.length == file.length() && fileState.lastModified == file.lastModified();
+  }
+
+  public void addProcessed(File file) {
+    pendingFiles.put(getKey(file), new FileState(file.length(), file.lastModified()));
+  }
+
+  public boolean containsTransactionId(String transactionId) throws IOException {
+    long hash = hash(transactionId);
+    if (pendingTransactionIds.contains(hash)) {
+      return true;
+    }
+    if (!mightContain(hash)) {
+      return false;
+    }
+    if (Arrays.binarySearch(newTransactionIds, hash) >= 0) {
+      return true;
+    }
+    return binarySearch(hash);
+  }
+
+  public void addTransactionId(String transactionId) {
+    pendingTransactionIds.add(hash(transactionId));
+  }
+
+  /**
+   * Writes everything added since the last commit to disk.
+   */
+  public void commit() throws IOException {
+    if (!pendingFiles.isEmpty()) {
+      Writer writer = new OutputStreamWriter(
+          new FileOutputStream(new File(directory, FILES_LOG), true), StandardCharsets.UTF_8);
+      try {
+        for (Map.Entry<String, FileState> entry : pendingFiles.entrySet()) {
+          FileState fileState = entry.getValue();
+          writer.write(fileState.length + "\t" + fileState.lastModified + "\t" + entry.getKey() +
+              "\n");
+        }
+      } finally {
+        writer.close();
+      }
+      processedFiles.putAll(pendingFiles);
+      pendingFiles.clear();
+    }
+
+    if (!pendingTransactionIds.isEmpty()) {
+      appendTransactionIds();
+      pendingTransactionIds.clear();
+      long mergeThreshold =
+          Math.max(MIN_MERGE_THRESHOLD, Math.min(MAX_MERGE_THRESHOLD, transactionIdCount / 8));
+      if (newTransactionIds.length > mergeThreshold ||
+          transactionIdCount + newTransactionIds.length > bloomFilterCapacity) {
+        mergeTransactionIds();
+      }
+    }
+  }
+
+  /**
+   * Forgets everything added since the last commit, after a conversion that failed.
+   */
+  public void discardPending() {
+    pendingFiles.clear();
+    pendingTransactionIds.clear();
+  }
+
+  public void close() throws IOException {
+    if (transactionIdsChannel != null) {
+      transactionIdsChannel.close();
+      transactionIdsChannel = null;
+    }
+  }
+
+  private void loadFiles() throws IOException {
+    BufferedReader reader;
+    try {
+      reader = new BufferedReader(new InputStreamReader(
+          new FileInputStream(new File(directory, FILES_LOG)), StandardCharsets.UTF_8));
+    } catch (FileNotFoundException e) {
+      return;
+    }
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] parts = line.split("\t", 3);
+        if (parts.length != 3) {
+          // Most likely a line cut short by a crash. The file will just be converted again.
+          logger.warning("Ignoring malformed journal line: " + line);
+          continue;
+        }
+        processedFiles.put(parts[2],
+                           new FileState(Long.parseLong(parts[0]), Long.parseLong(parts[1])));
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  private void openTransactionIds() throws IOException {
+    File file = new File(directory, TRANSACTION_IDS);
+    transactionIdCount = file.length() / 8;
+    newTransactionIds = readNewTransactionIds();
+    newBloomFilter(transactionIdCount + newTransactionIds.length);
+    for (long transactionId : newTransactionIds) {
+      addToBloomFilter(transactionId);
+    }
+    if (transactionIdCount == 0) {
+      return;
+    }
+
+    DataInputStream inputStream = openTransactionIdsStream(file);
+    try {
+      for (long i = 0; i < transactionIdCount; i++) {
+        addToBloomFilter(inputStream.readLong());
+      }
+    } finally {
+      inputStream.close();
+    }
+    transactionIdsChannel = new FileInputStream(file).getChannel();
+  }
+
+  private long[] readNewTransactionIds() throws IOException {
+    File file = new File(directory, NEW_TRANSACTION_IDS);
+    long length = file.length();
+    if (length % 8 != 0) {
+      // An append cut short by a crash. Its commit never finished, so the partial ID goes.
+      logger.warning("Truncating " + file + " to a whole number of IDs.");
+      FileChannel fileChannel = new FileOutputStream(file, true).getChannel();
+      try {
+        fileChannel.truncate(length - length % 8);
+      } finally {
+        fileChannel.close();
+      }
+    }
+    long[] transactionIds = new long[(int) (length / 8)];
+    if (transactionIds.length == 0) {
+      return transactionIds;
+    }
+    DataInputStream inputStream = openTransactionIdsStream(file);
+    try {
+      for (int i = 0; i < transactionIds.length; i++) {
+        transactionIds[i] = inputStream.readLong();
+      }
+    } finally {
+      inputStream.close();
+    }
+    Arrays.sort(transactionIds);
+    return union(transactionIds, new long[0]);
+  }
+
+  private void appendTransactionIds() throws IOException {
+    long[] pendingIds = new long[pendingTransactionIds.size()];
+    int pendingIndex = 0;
+    for (long transactionId : pendingTransactionIds) {
+      pendingIds[pendingIndex++] = transactionId;
+    }
+    Arrays.sort(pendingIds);
+
+    DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(new File(directory, NEW_TRANSACTION_IDS), true)));
+    try {
+      for (long transactionId : pendingIds) {
+        outputStream.writeLong(transactionId);
+      }
+    } finally {
+      outputStream.close();
+    }
+    newTransactionIds = union(newTransactionIds, pendingIds);
+    for (long transactionId : pendingIds) {
+      addToBloomFilter(transactionId);
+    }
+  }
+
+  // Rewrites transaction_ids.dat with the new IDs merged in, and empties new_transaction_ids.dat.
+  private void mergeTransactionIds() throws IOException {
+    boolean resize = transactionIdCount + newTransactionIds.length > bloomFilterCapacity;
+    if (resize) {
+      newBloomFilter(transactionIdCount + newTransactionIds.length);
+    }
+
+    File file = new File(directory, TRANSACTION_IDS);
+    File tempFile = new File(directory, TRANSACTION_IDS + ".tmp");
+    DataOutputStream outputStream =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+    try {
+      int newIndex = 0;
+      if (transactionIdCount > 0) {
+        DataInputStream inputStream = openTransactionIdsStream(file);
+        try {
+          for (long i = 0; i < transactionIdCount; i++) {
+            long oldId = inputStream.readLong();
+            while (newIndex < newTransactionIds.length && newTransactionIds[newIndex] < oldId) {
+              writeTransactionId(outputStream, newTransactionIds[newIndex++], resize);
+            }
+            if (newIndex < newTransactionIds.length && newTransactionIds[newIndex] == oldId) {
+              // Left behind by a merge that was cut short before the new IDs were emptied.
+              newIndex++;
+            }
+            writeTransactionId(outputStream, oldId, resize);
+          }
+        } finally {
+          inputStream.close();
+        }
+      }
+      while (newIndex < newTransactionIds.length) {
+        writeTransactionId(outputStream, newTransactionIds[newIndex++], resize);
+      }
+    } finally {
+      outputStream.close();
+    }
+
+    close();
+    try {
+      Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    new FileOutputStream(new File(directory, NEW_TRANSACTION_IDS)).close();
+    newTransactionIds = new long[0];
+    transactionIdCount = file.length() / 8;
+    transactionIdsChannel = new FileInputStream(file).getChannel();
+  }
+
+  private void writeTransactionId(DataOutputStream outputStream, long transactionId,
+      boolean addToBloomFilter) throws IOException {
+    outputStream.writeLong(transactionId);
+    if (addToBloomFilter) {
+      addToBloomFilter(transactionId);
+    }
+  }
+
+  // Merges two sorted arrays, leaving out duplicates.
+  private static long[] union(long[] first, long[] second) {
+    long[] union = new long[first.length + second.length];
+    int firstIndex = 0;
+    int secondIndex = 0;
+    int count = 0;
+    while (firstIndex < first.length || secondIndex < second.length) {
+      long value;
+      if (secondIndex == second.length ||
+          (firstIndex < first.length && first[firstIndex] <= second[secondIndex])) {
+        value = first[firstIndex++];
+      } else {
+        value = second[secondIndex++];
+      }
+      if (count == 0 || union[count - 1] != value) {
+        union[count++] = value;
+      }
+    }
+    return count == union.length ? union : Arrays.copyOf(union, count);
+  }
+
+  // Sized for twice the IDs there are, so that it's rebuilt once per doubling.
+  private void newBloomFilter(long transactionIdCount) {
+    bloomFilterCapacity = 2 * transactionIdCount + 1024;
+    long bits = Math.max(64, bloomFilterCapacity * BLOOM_FILTER_BITS_PER_ID);
+    bloomFilter = new long[(int) Math.min(Integer.MAX_VALUE, (bits + 63) / 64)];
+  }
+
+  private static DataInputStream openTransactionIdsStream(File file) throws IOException {
+    return new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+  }
+
+  private boolean binarySearch(long hash) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(8);
+    long low = 0;
+    long high = transactionIdCount - 1;
+    while (low <= high) {
+      long middle = (low + high) >>> 1;
+      buffer.clear();
+      while (buffer.hasRemaining()) {
+        if (transactionIdsChannel.read(buffer, middle * 8 + buffer.position()) < 0) {
+          throw new IOException(TRANSACTION_IDS + " was truncated");
+        }
+      }
+      long value = buffer.getLong(0);
+      if (value < hash) {
+        low = middle + 1;
+      } else if (value > hash) {
+        high = middle - 1;
+      } else {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void addToBloomFilter(long hash) {
+    long bits = bloomFilter.length * 64L;
+    int hash1 = (int) hash;
+    int hash2 = (int) (hash >>> 32);
+    for (int i = 1; i <= BLOOM_FILTER_HASHES; i++) {
+      long bit = ((hash1 + i * hash2) & 0x7fffffffL) % bits;
+      bloomFilter[(int) (bit >>> 6)] |= 1L << bit;
+    }
+  }
+
+  private boolean mightContain(long hash) {
+    long bits = bloomFilter.length * 64L;
+    int hash1 = (int) hash;
+    int hash2 = (int) (hash >>> 32);
+    for (int i = 1; i <= BLOOM_FILTER_HASHES; i++) {
+      long bit = ((hash1 + i * hash2) & 0x7fffffffL) % bits;
+      if ((bloomFilter[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String getKey(File file) {
+    return file.getAbsolutePath();
+  }
+
+  // 64-bit FNV-1a followed by a finalizer so that similar IDs spread over the whole range.
+  static long hash(String transactionId) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < transactionId.length(); i++) {
+      hash ^= transactionId.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  private static class FileState {
+    private long length;
+    private long lastModified;
+
+    public FileState(long length, long lastModified) {
+      this.length = length;
+      this.lastModified = lastModified;
+    }
+  }
+}
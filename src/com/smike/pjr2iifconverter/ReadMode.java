@@ -0,0 +1,23 @@
+package com.smike.pjr2iifconverter;
+
+/**
+ * The available ways of reading PJR files before they are parsed.
+ */
+public enum ReadMode {
+  /** Opens a buffered stream over each file. */
+  STREAM,
+  /**
+   * Reads each file in one go through a file channel into a pooled buffer, and memory-maps files
+   * that are too large to be worth copying.
+   */
+  NIO;
+
+  public static ReadMode getEnum(String name) {
+    for (ReadMode readMode : ReadMode.values()) {
+      if (readMode.name().equalsIgnoreCase(name)) {
+        return readMode;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,353 @@
+package com.smike.pjr2iifconverter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+/**
+ * A run: transactions in {@link #ORDER}, in a compact binary file that is only ever read from
+ * start to end. Runs written separately, say by shard conversions on other machines, are
+ * combined into one ordered stream by {@link #merge(List, TransactionSink)}.
+ *
+ * After a header, which lists the PJR files that a shard's run was converted from, each
+ * transaction is a byte saying which of its strings are present, its receipt date in days since
+ * 1970-01-01 and amount in cents, then its transaction ID, account and memo. The run ends with
+ * a marker byte and the number of transactions, so a run cut short is noticed instead of
+ * merged.
+ */
+public class RunFile {
+  private static final int MAGIC = 0x504a5252;
+  // 2: transaction IDs are in numeric order. 3: the header lists the run's sources.
+  private static final int VERSION = 3;
+
+  private static final int HAS_TRANSACTION_ID = 1;
+  private static final int HAS_ACCOUNT = 2;
+  private static final int HAS_MEMO = 4;
+  private static final int END_OF_RUN = 0x80;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Orders transactions by receipt date, then by transaction ID as in
+   * {@link TransactionBatch#compareTransactionIds(String, String)}, then by account and amount,
+   * so that merged runs come out the same however the transactions were split between them.
+   * Missing IDs and accounts come first.
+   */
+  public static final TransactionBatch.IndexComparator ORDER =
+      new TransactionBatch.IndexComparator() {
+        @Override
+        public int compare(TransactionBatch batch, int index1, int index2) {
+          return RunFile.compare(batch.getReceiptEpochDay(index1), batch.getTransactionId(index1),
+                                 batch.getAccount(index1), batch.getAmountCents(index1),
+                                 batch.getReceiptEpochDay(index2), batch.getTransactionId(index2),
+                                 batch.getAccount(index2), batch.getAmountCents(index2));
+        }
+      };
+
+  private RunFile() {}
+
+  /**
+   * Returns where shard conversions write their runs, next to the IIF that the merge writes:
+   * {@code out.iif} becomes {@code out-shard-2-of-8.run}.
+   */
+  public static File getShardFile(File iifFile, int shardIndex, int shardCount) {
+    File absoluteFile = iifFile.getAbsoluteFile();
+    String baseName = absoluteFile.getName();
+    if (baseName.toLowerCase(Locale.ROOT).endsWith(".iif")) {
+      baseName = baseName.substring(0, baseName.length() - ".iif".length());
+    }
+    return new File(absoluteFile.getParentFile(),
+                    baseName + "-shard-" + shardIndex + "-of-" + shardCount + ".run");
+  }
+
+  /**
+   * Writes the transactions of all the runs to the sink in {@link #ORDER}, and returns how many
+   * there were. Transactions that compare equal keep the order of the runs they came from.
+   */
+  public static long merge(List<File> runFiles, TransactionSink transactionSink)
+      throws IOException {
+    List<Reader> readers = new ArrayList<Reader>(runFiles.size());
+    PriorityQueue<Reader> queue =
+        new PriorityQueue<Reader>(Math.max(1, runFiles.size()), new Comparator<Reader>() {
+          @Override
+          public int compare(Reader reader1, Reader reader2) {
+            int result = reader1.compareTo(reader2);
+            return result != 0 ? result : Integer.compare(reader1.number, reader2.number);
+          }
+        });
+    long transactionCount = 0;
+    try {
+      for (File runFile : runFiles) {
+        Reader reader = new Reader(runFile);
+        reader.number = readers.size();
+        readers.add(reader);
+        if (reader.next()) {
+          queue.add(reader);
+        }
+      }
+
+      Reader reader;
+      while ((reader = queue.poll()) != null) {
+        transactionSink.write(reader.receiptEpochDay, reader.transactionId, reader.amountCents,
+                              reader.account, reader.memo);
+        transactionCount++;
+        if (reader.next()) {
+          queue.add(reader);
+        }
+      }
+      transactionSink.flush();
+    } finally {
+      for (Reader reader : readers) {
+        reader.close();
+      }
+    }
+    return transactionCount;
+  }
+
+  /**
+   * Returns the paths of the PJR files that the run was converted from.
+   */
+  public static List<String> readSources(File runFile) throws IOException {
+    Reader reader = new Reader(runFile);
+    try {
+      return reader.getSources();
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static int compare(int receiptEpochDay1, String transactionId1, String account1,
+      long amountCents1, int receiptEpochDay2, String transactionId2, String account2,
+      long amountCents2) {
+    int result = Integer.compare(receiptEpochDay1, receiptEpochDay2);
+    if (result == 0) {
+      result = TransactionBatch.compareTransactionIds(transactionId1, transactionId2);
+    }
+    if (result == 0) {
+      result = compareNullsFirst(account1, account2);
+    }
+    if (result == 0) {
+      result = Long.compare(amountCents1, amountCents2);
+    }
+    return result;
+  }
+
+  private static int compareNullsFirst(String string1, String string2) {
+    if (string1 == null || string2 == null) {
+      return string1 == null ? (string2 == null ? 0 : -1) : 1;
+    }
+    return string1.compareTo(string2);
+  }
+
+  /**
+   * Writes a run to a stream. Transactions have to be written in {@link #ORDER}. Closing the
+   * writer ends the run and closes the stream.
+   */
+  public static class Writer implements TransactionSink, Closeable {
+    private DataOutputStream outputStream;
+    private long transactionCount;
+
+    private int lastReceiptEpochDay;
+    private String lastTransactionId;
+    private String lastAccount;
+    private long lastAmountCents;
+
+    public Writer(OutputStream outputStream) throws IOException {
+      this(outputStream, Collections.<String>emptyList());
+    }
+
+    /**
+     * @param sources the paths of the PJR files the run is converted from, so that whatever
+     *     merges it can clean them up afterwards
+     */
+    public Writer(OutputStream outputStream, List<String> sources) throws IOException {
+      this.outputStream =
+          new DataOutputStream(new BufferedOutputStream(outputStream, BUFFER_SIZE));
+      this.outputStream.writeInt(MAGIC);
+      this.outputStream.writeInt(VERSION);
+      this.outputStream.writeInt(sources.size());
+      for (String source : sources) {
+        this.outputStream.writeUTF(source);
+      }
+    }
+
+    public long getTransactionCount() {
+      return transactionCount;
+    }
+
+    @Override
+    public void write(int receiptEpochDay, String transactionId, long amountCents,
+        String account, String memo) throws IOException {
+      if (transactionCount > 0 &&
+          compare(lastReceiptEpochDay, lastTransactionId, lastAccount, lastAmountCents,
+                  receiptEpochDay, transactionId, account, amountCents) > 0) {
+        throw new IllegalStateException("Transaction " + transactionId + " is out of order.");
+      }
+      int present = (transactionId == null ? 0 : HAS_TRANSACTION_ID) |
+          (account == null ? 0 : HAS_ACCOUNT) | (memo == null ? 0 : HAS_MEMO);
+      outputStream.writeByte(present);
+      outputStream.writeInt(receiptEpochDay);
+      outputStream.writeLong(amountCents);
+      if (transactionId != null) {
+        outputStream.writeUTF(transactionId);
+      }
+      if (account != null) {
+        outputStream.writeUTF(account);
+      }
+      if (memo != null) {
+        outputStream.writeUTF(memo);
+      }
+      transactionCount++;
+      lastReceiptEpochDay = receiptEpochDay;
+      lastTransactionId = transactionId;
+      lastAccount = account;
+      lastAmountCents = amountCents;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      outputStream.flush();
+    }
+
+    /**
+     * Ends the run without closing the stream, for a stream that still has to be synced.
+     */
+    public void finish() throws IOException {
+      outputStream.writeByte(END_OF_RUN);
+      outputStream.writeLong(transactionCount);
+      outputStream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        finish();
+      } finally {
+        outputStream.close();
+      }
+    }
+  }
+
+  /**
+   * Reads a run from start to end, one transaction at a time.
+   */
+  public static class Reader implements Closeable {
+    private File file;
+    private DataInputStream inputStream;
+    private List<String> sources;
+    private long transactionCount;
+    private boolean ended;
+    // The reader's place among the runs being merged.
+    private int number;
+
+    private int receiptEpochDay;
+    private String transactionId;
+    private long amountCents;
+    private String account;
+    private String memo;
+
+    public Reader(File file) throws IOException {
+      this.file = file;
+      inputStream = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+      try {
+        if (inputStream.readInt() != MAGIC || inputStream.readInt() != VERSION) {
+          throw new IOException(file + " isn't a run from this version.");
+        }
+        int sourceCount = inputStream.readInt();
+        if (sourceCount < 0) {
+          throw new IOException(file + " has a corrupt header.");
+        }
+        sources = new ArrayList<String>(Math.min(sourceCount, 1024));
+        for (int i = 0; i < sourceCount; i++) {
+          sources.add(inputStream.readUTF());
+        }
+      } catch (EOFException e) {
+        inputStream.close();
+        throw new IOException(file + " was cut short in its header.", e);
+      } catch (IOException e) {
+        inputStream.close();
+        throw e;
+      }
+    }
+
+    public List<String> getSources() {
+      return Collections.unmodifiableList(sources);
+    }
+
+    /**
+     * Moves to the next transaction, and returns false at the end of the run.
+     */
+    public boolean next() throws IOException {
+      if (ended) {
+        return false;
+      }
+      try {
+        int present = inputStream.readUnsignedByte();
+        if (present == END_OF_RUN) {
+          long expectedCount = inputStream.readLong();
+          if (expectedCount != transactionCount) {
+            throw new IOException(file + " has " + transactionCount + " transactions, not " +
+                expectedCount + ".");
+          }
+          ended = true;
+          return false;
+        }
+        receiptEpochDay = inputStream.readInt();
+        amountCents = inputStream.readLong();
+        transactionId = (present & HAS_TRANSACTION_ID) == 0 ? null : inputStream.readUTF();
+        account = (present & HAS_ACCOUNT) == 0 ? null : inputStream.readUTF();
+        memo = (present & HAS_MEMO) == 0 ? null : inputStream.readUTF();
+      } catch (EOFException e) {
+        throw new IOException(file + " was cut short after " + transactionCount +
+            " transactions.", e);
+      }
+      transactionCount++;
+      return true;
+    }
+
+    public int getReceiptEpochDay() {
+      return receiptEpochDay;
+    }
+
+    public String getTransactionId() {
+      return transactionId;
+    }
+
+    public long getAmountCents() {
+      return amountCents;
+    }
+
+    public String getAccount() {
+      return account;
+    }
+
+    public String getMemo() {
+      return memo;
+    }
+
+    @Override
+    public void close() throws IOException {
+      inputStream.close();
+    }
+
+    private int compareTo(Reader reader) {
+      return compare(receiptEpochDay, transactionId, account, amountCents,
+                     reader.receiptEpochDay, reader.transactionId, reader.account,
+                     reader.amountCents);
+    }
+  }
+}
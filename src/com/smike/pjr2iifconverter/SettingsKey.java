@@ -2,10 +2,35 @@ package com.smike.pjr2iifconverter;
 
 public enum SettingsKey {
   ACCOUNT_ID_MAP_FILE("account_id_map_file"),
+  AGGREGATION("aggregation"),
+  ARCHIVE_LOCATION("archive_location"),
   DELETE_PJRS_ON_CONVERT("delete_pjrs_on_convert"),
   IGNORE_NEGATIVE_TRANSACTIONS("ignore_negative_transactions"),
   IIF_OUTPUT_FILE("iif_output_file"),
-  PJR_LOCATION("pjr_location");
+  JOURNAL_LOCATION("journal_location"),
+  METRICS_JMX("metrics_jmx"),
+  METRICS_REPORT_FILE("metrics_report_file"),
+  MULTI_TRANSACTION("multi_transaction"),
+  PARSER_ENGINE("parser_engine"),
+  PARTITION_BY_DATE("partition_by_date"),
+  PARTITION_BYTES("partition_bytes"),
+  PARTITION_TRANSACTIONS("partition_transactions"),
+  PJR_LOCATION("pjr_location"),
+  READ_MODE("read_mode"),
+  RECORD_CACHE_FILE("record_cache_file"),
+  SERVER_MAX_CONCURRENT_REQUESTS("server_max_concurrent_requests"),
+  SERVER_MAX_DECOMPRESSED_MB("server_max_decompressed_mb"),
+  SERVER_MAX_UPLOAD_MB("server_max_upload_mb"),
+  SERVER_PORT("server_port"),
+  SERVER_ROLLOVER_MB("server_rollover_mb"),
+  SHARD_COUNT("shard_count"),
+  SHARD_INDEX("shard_index"),
+  SORT_MEMORY_MB("sort_memory_mb"),
+  SORT_OUTPUT("sort_output"),
+  THREAD_COUNT("thread_count"),
+  TRANSACTION_TAG("transaction_tag"),
+  WATCH_INTERVAL_SECONDS("watch_interval_seconds"),
+  WATCH_ROLLOVER("watch_rollover");
 
   private String key;
   private SettingsKey(String key) {
@@ -0,0 +1,164 @@
+package com.smike.pjr2iifconverter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Deletes PJR files, or moves them into an archive directory, once the IIF made from them has
+ * been committed. Files are handled in batches on several threads, and a file that can't be
+ * cleaned up is reported with the reason instead of being passed over.
+ */
+public class SourceCleaner {
+  private static Logger logger = Logger.getLogger(SourceCleaner.class.getName());
+
+  private static final int BATCH_SIZE = 256;
+
+  private File archiveDirectory;
+  private int threadCount = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * Creates a cleaner that deletes files.
+   */
+  public SourceCleaner() {}
+
+  /**
+   * Creates a cleaner that moves files into the archive directory, or deletes them if it's null.
+   */
+  public SourceCleaner(File archiveDirectory) {
+    this.archiveDirectory = archiveDirectory;
+  }
+
+  public File getArchiveDirectory() {
+    return archiveDirectory;
+  }
+
+  public int getThreadCount() {
+    return threadCount;
+  }
+
+  public void setThreadCount(int threadCount) {
+    this.threadCount = threadCount;
+  }
+
+  /**
+   * Deletes or archives the files, and returns which of them couldn't be.
+   */
+  public Result clean(List<File> files) throws InterruptedException {
+    if (archiveDirectory != null) {
+      archiveDirectory.mkdirs();
+    }
+    Result result = new Result();
+    int batchCount = (files.size() + BATCH_SIZE - 1) / BATCH_SIZE;
+    if (batchCount <= 1 || threadCount <= 1) {
+      cleanBatch(files, result);
+      logResult(result);
+      return result;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(threadCount, batchCount),
+                                                            new CleanerThreadFactory());
+    try {
+      List<Future<Result>> futures = new ArrayList<Future<Result>>(batchCount);
+      for (int start = 0; start < files.size(); start += BATCH_SIZE) {
+        final List<File> batch = files.subList(start, Math.min(start + BATCH_SIZE, files.size()));
+        futures.add(executor.submit(new Callable<Result>() {
+          @Override
+          public Result call() {
+            Result batchResult = new Result();
+            cleanBatch(batch, batchResult);
+            return batchResult;
+          }
+        }));
+      }
+      // Batches are merged in order, so failures are listed in the order the files were given.
+      for (Future<Result> future : futures) {
+        try {
+          Result batchResult = future.get();
+          result.cleanedCount += batchResult.cleanedCount;
+          result.failures.putAll(batchResult.failures);
+        } catch (ExecutionException e) {
+          throw new IllegalStateException("Unable to clean up PJR files", e.getCause());
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    logResult(result);
+    return result;
+  }
+
+  private void cleanBatch(List<File> batch, Result result) {
+    for (File file : batch) {
+      try {
+        if (archiveDirectory == null) {
+          Files.deleteIfExists(file.toPath());
+        } else {
+          // Never replace an archived file, since it could be the only copy of a different PJR.
+          Files.move(file.toPath(), new File(archiveDirectory, file.getName()).toPath());
+        }
+        result.cleanedCount++;
+      } catch (IOException e) {
+        result.failures.put(file, e);
+      }
+    }
+  }
+
+  private void logResult(Result result) {
+    String action = archiveDirectory == null ? "Deleted" : "Archived";
+    logger.info(action + " " + result.getCleanedCount() + " PJR files.");
+    for (Map.Entry<File, IOException> failure : result.getFailures().entrySet()) {
+      logger.warning("Unable to clean up " + failure.getKey() + ": " + failure.getValue());
+    }
+  }
+
+  /**
+   * What became of the files given to {@link SourceCleaner#clean(List)}.
+   */
+  public static class Result {
+    private int cleanedCount;
+    private Map<File, IOException> failures = new LinkedHashMap<File, IOException>();
+
+    /**
+     * Returns how many files were deleted or archived.
+     */
+    public int getCleanedCount() {
+      return cleanedCount;
+    }
+
+    /**
+     * Returns the files that were left where they were, with the reason.
+     */
+    public Map<File, IOException> getFailures() {
+      return Collections.unmodifiableMap(failures);
+    }
+
+    public boolean isComplete() {
+      return failures.isEmpty();
+    }
+  }
+
+  private static class CleanerThreadFactory implements ThreadFactory {
+    private AtomicInteger threadNumber = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "pjr-cleaner-" + threadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
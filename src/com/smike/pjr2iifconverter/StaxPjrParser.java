@@ -0,0 +1,86 @@
+package com.smike.pjr2iifconverter;
+
+import java.io.InputStream;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streams through the document and stops reading as soon as the first occurrence of every tag
+ * has been seen, so the rest of a large journal is never parsed.
+ *
+ * The extracted values match {@link DomPjrParser}: tags are matched by their name as written
+ * and a value is all of the text inside the first element with that name, including the text of
+ * any nested elements.
+ */
+public class StaxPjrParser implements PjrParser {
+  private static final String[] TAGS = {
+    RECEIPT_DATE_TAG, TRANSACTION_ID_TAG, TRANSACTION_TOTAL_NET_AMOUNT_TAG, ACCOUNT_ID_TAG
+  };
+
+  private String[] values = new String[TAGS.length];
+  // The element depth at which each tag's value is being captured, or -1 if it isn't.
+  private int[] captureDepths = new int[TAGS.length];
+  private StringBuilder[] captures = new StringBuilder[TAGS.length];
+
+  public StaxPjrParser() {
+    for (int i = 0; i < TAGS.length; i++) {
+      captures[i] = new StringBuilder();
+    }
+  }
+
+  @Override
+  public PjrRecord parse(InputStream inputStream, String systemId) throws XMLStreamException {
+    for (int i = 0; i < TAGS.length; i++) {
+      values[i] = null;
+      captureDepths[i] = -1;
+      captures[i].setLength(0);
+    }
+
+    XMLStreamReader reader = XmlParserFactory.createXmlStreamReader(systemId, inputStream);
+    try {
+      int depth = 0;
+      int remaining = TAGS.length;
+      while (remaining > 0 && reader.hasNext()) {
+        switch (reader.next()) {
+          case XMLStreamConstants.START_ELEMENT:
+            depth++;
+            String name = reader.getLocalName();
+            for (int i = 0; i < TAGS.length; i++) {
+              if (values[i] == null && captureDepths[i] == -1 && TAGS[i].equals(name)) {
+                captureDepths[i] = depth;
+              }
+            }
+            break;
+          case XMLStreamConstants.CHARACTERS:
+          case XMLStreamConstants.CDATA:
+          case XMLStreamConstants.SPACE:
+            for (int i = 0; i < TAGS.length; i++) {
+              if (captureDepths[i] != -1) {
+                captures[i].append(reader.getTextCharacters(), reader.getTextStart(),
+                                   reader.getTextLength());
+              }
+            }
+            break;
+          case XMLStreamConstants.END_ELEMENT:
+            for (int i = 0; i < TAGS.length; i++) {
+              if (captureDepths[i] == depth) {
+                values[i] = captures[i].toString();
+                captureDepths[i] = -1;
+                remaining--;
+              }
+            }
+            depth--;
+            break;
+          default:
+            break;
+        }
+      }
+    } finally {
+      reader.close();
+    }
+
+    return new PjrRecord(values[0], values[1], values[2], values[3]);
+  }
+}
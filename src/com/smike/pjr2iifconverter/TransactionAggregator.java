@@ -0,0 +1,136 @@
+package com.smike.pjr2iifconverter;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Rolls transactions up into one group per account and receipt date, and optionally per sign,
+ * and writes each group as a single invoice for the summed amount. The invoice takes the lowest
+ * TransactionID as its number and gets a memo with the count and range of the IDs.
+ *
+ * Only a running total, a count and the lowest and highest ID are kept for each group, so memory
+ * grows with the number of accounts and days rather than with the number of transactions, and
+ * transactions can be added straight from a stream in any order. Not thread-safe.
+ */
+public class TransactionAggregator {
+  private static final int INITIAL_CAPACITY = 64;
+
+  private boolean splitBySign;
+
+  // One row per group: its receipt date, account, total in cents and lowest TransactionID.
+  private TransactionBatch groups = new TransactionBatch(INITIAL_CAPACITY);
+  // What the batch has no column for, indexed the same way.
+  private boolean[] negatives = new boolean[INITIAL_CAPACITY];
+  private int[] counts = new int[INITIAL_CAPACITY];
+  private String[] highestIds = new String[INITIAL_CAPACITY];
+
+  // Group indexes by receipt date, account index and sign packed into a long.
+  private Map<Long, Integer> groupIndexes = new HashMap<Long, Integer>();
+
+  public TransactionAggregator(Aggregation aggregation) {
+    if (aggregation == Aggregation.NONE) {
+      throw new IllegalArgumentException("Nothing to aggregate by");
+    }
+    this.splitBySign = aggregation == Aggregation.ACCOUNT_DAY_SIGN;
+  }
+
+  /**
+   * Returns how many groups, and so invoices, there are so far.
+   */
+  public int getGroupCount() {
+    return groups.size();
+  }
+
+  public void add(TransactionData transactionData) {
+    add(transactionData.getReceiptEpochDay(), transactionData.getTransactionId(),
+        transactionData.getAmountCents(), transactionData.getAccount());
+  }
+
+  public void add(int receiptEpochDay, String transactionId, long amountCents, String account) {
+    int accountIndex = groups.getAccountIndex(String.valueOf(account));
+    boolean negative = splitBySign && amountCents < 0;
+    Long key = ((long) receiptEpochDay << 32) | ((long) accountIndex << 1) | (negative ? 1 : 0);
+    Integer groupIndex = groupIndexes.get(key);
+    if (groupIndex == null) {
+      groupIndex = addGroup(receiptEpochDay, accountIndex, negative);
+      groupIndexes.put(key, groupIndex);
+    }
+
+    int i = groupIndex;
+    groups.addAmountCents(i, amountCents);
+    counts[i]++;
+    if (transactionId != null) {
+      String lowestId = groups.getTransactionId(i);
+      if (lowestId == null || TransactionBatch.compareTransactionIds(transactionId, lowestId) < 0) {
+        groups.setTransactionId(i, transactionId);
+      }
+      if (highestIds[i] == null ||
+          TransactionBatch.compareTransactionIds(transactionId, highestIds[i]) > 0) {
+        highestIds[i] = transactionId;
+      }
+    }
+  }
+
+  /**
+   * Writes an invoice for each group, ordered by receipt date, then account, with sales before
+   * refunds, and then forgets the groups. Returns how many invoices were written. IIF writers
+   * should be writing memos.
+   */
+  public int writeTo(TransactionSink transactionSink) throws IOException {
+    int[] order = groups.getSortedOrder(new TransactionBatch.IndexComparator() {
+      @Override
+      public int compare(TransactionBatch batch, int group1, int group2) {
+        int result = Integer.compare(batch.getReceiptEpochDay(group1),
+                                     batch.getReceiptEpochDay(group2));
+        if (result == 0) {
+          result = batch.getAccount(group1).compareTo(batch.getAccount(group2));
+        }
+        if (result == 0) {
+          result = Boolean.compare(negatives[group1], negatives[group2]);
+        }
+        return result;
+      }
+    });
+
+    for (int i : order) {
+      transactionSink.write(groups.getReceiptEpochDay(i), groups.getTransactionId(i),
+                            groups.getAmountCents(i), groups.getAccount(i), getMemo(i));
+    }
+    int written = groups.size();
+    clear();
+    return written;
+  }
+
+  public void clear() {
+    Arrays.fill(highestIds, 0, groups.size(), null);
+    groups.clear();
+    groupIndexes.clear();
+  }
+
+  private String getMemo(int i) {
+    String lowestId = groups.getTransactionId(i);
+    if (lowestId == null) {
+      return counts[i] == 1 ? "1 transaction" : counts[i] + " transactions";
+    }
+    if (counts[i] == 1) {
+      return "Transaction " + lowestId;
+    }
+    return counts[i] + " transactions, " + lowestId + " to " + highestIds[i];
+  }
+
+  private int addGroup(int receiptEpochDay, int accountIndex, boolean negative) {
+    int groupIndex = groups.size();
+    if (groupIndex == counts.length) {
+      int capacity = groupIndex * 2;
+      negatives = Arrays.copyOf(negatives, capacity);
+      counts = Arrays.copyOf(counts, capacity);
+      highestIds = Arrays.copyOf(highestIds, capacity);
+    }
+    groups.add(receiptEpochDay, null, 0, accountIndex);
+    negatives[groupIndex] = negative;
+    counts[groupIndex] = 0;
+    return groupIndex;
+  }
+}
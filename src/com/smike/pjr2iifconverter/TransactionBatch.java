@@ -0,0 +1,314 @@
+package com.smike.pjr2iifconverter;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A growable batch of transactions stored column by column in primitive arrays: receipt dates as
+ * epoch days, amounts as cents and accounts as indexes into a table of distinct account names.
+ * Sorting and running totals work on the columns directly, without a {@link TransactionData} or
+ * a boxed value per transaction. {@link TransactionSorter} spills batches as sorted runs, and
+ * {@link TransactionAggregator} keeps one row per group.
+ *
+ * There is no filtering over a batch. Negative transactions are left out one at a time as their
+ * PJRs are read, before they reach a batch, because a left-out transaction mustn't be counted or
+ * have its TransactionID journalled either.
+ *
+ * Not thread-safe.
+ */
+public class TransactionBatch {
+  public interface IndexComparator {
+    int compare(TransactionBatch batch, int index1, int index2);
+  }
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private int size;
+  private int[] receiptEpochDays;
+  // In cents.
+  private long[] amounts;
+  private int[] accountIndexes;
+  private String[] transactionIds;
+
+  private String[] accounts = new String[16];
+  private int accountCount;
+  private Map<String, Integer> accountIndexesByName = new HashMap<String, Integer>();
+
+  public TransactionBatch() {
+    this(INITIAL_CAPACITY);
+  }
+
+  public TransactionBatch(int initialCapacity) {
+    initialCapacity = Math.max(1, initialCapacity);
+    receiptEpochDays = new int[initialCapacity];
+    amounts = new long[initialCapacity];
+    accountIndexes = new int[initialCapacity];
+    transactionIds = new String[initialCapacity];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public void add(TransactionData transactionData) {
+    add(transactionData.getReceiptEpochDay(), transactionData.getTransactionId(),
+        transactionData.getAmountCents(), transactionData.getAccount());
+  }
+
+  public void add(int receiptEpochDay, String transactionId, long amountCents, String account) {
+    add(receiptEpochDay, transactionId, amountCents, getAccountIndex(account));
+  }
+
+  /**
+   * Adds a transaction whose account has already been looked up with
+   * {@link #getAccountIndex(String)}.
+   */
+  public void add(int receiptEpochDay, String transactionId, long amountCents,
+      int accountIndex) {
+    if (size == receiptEpochDays.length) {
+      grow();
+    }
+    receiptEpochDays[size] = receiptEpochDay;
+    transactionIds[size] = transactionId;
+    amounts[size] = amountCents;
+    accountIndexes[size] = accountIndex;
+    size++;
+  }
+
+  /**
+   * Returns a {@link TransactionData} with the values of one transaction.
+   */
+  public TransactionData get(int index) {
+    checkIndex(index);
+    return new TransactionData(receiptEpochDays[index], transactionIds[index],
+                               amounts[index], accounts[accountIndexes[index]]);
+  }
+
+  public void setTransactionId(int index, String transactionId) {
+    checkIndex(index);
+    transactionIds[index] = transactionId;
+  }
+
+  /**
+   * Adds to the amount of one transaction, for a row that holds a running total.
+   */
+  public void addAmountCents(int index, long amountCents) {
+    checkIndex(index);
+    amounts[index] += amountCents;
+  }
+
+  public int getReceiptEpochDay(int index) {
+    checkIndex(index);
+    return receiptEpochDays[index];
+  }
+
+  public String getTransactionId(int index) {
+    checkIndex(index);
+    return transactionIds[index];
+  }
+
+  public long getAmountCents(int index) {
+    checkIndex(index);
+    return amounts[index];
+  }
+
+  public int getAccountIndex(int index) {
+    checkIndex(index);
+    return accountIndexes[index];
+  }
+
+  public String getAccount(int index) {
+    checkIndex(index);
+    return accounts[accountIndexes[index]];
+  }
+
+  /**
+   * Returns how many distinct accounts have been added. Account indexes run from zero up to this.
+   */
+  public int getAccountCount() {
+    return accountCount;
+  }
+
+  public String getAccountName(int accountIndex) {
+    if (accountIndex < 0 || accountIndex >= accountCount) {
+      throw new IndexOutOfBoundsException("Account index " + accountIndex);
+    }
+    return accounts[accountIndex];
+  }
+
+  /**
+   * Returns the index of the account, adding it to the table of accounts if it's new.
+   */
+  public int getAccountIndex(String account) {
+    Integer accountIndex = accountIndexesByName.get(account);
+    if (accountIndex == null) {
+      if (accountCount == accounts.length) {
+        accounts = Arrays.copyOf(accounts, accountCount * 2);
+      }
+      accountIndex = accountCount;
+      accounts[accountCount++] = account;
+      accountIndexesByName.put(account, accountIndex);
+    }
+    return accountIndex;
+  }
+
+  /**
+   * Returns the indexes of the transactions in sorted order, leaving the transactions where they
+   * are. The sort is stable, so equal transactions stay in the order they were added.
+   */
+  public int[] getSortedOrder(IndexComparator indexComparator) {
+    int[] order = new int[size];
+    for (int i = 0; i < size; i++) {
+      order[i] = i;
+    }
+    if (size > 1) {
+      mergeSort(order, new int[size], 0, size, indexComparator);
+    }
+    return order;
+  }
+
+  /**
+   * Sorts the transactions. The sort is stable, so equal transactions stay in the order they
+   * were added.
+   */
+  public void sort(IndexComparator indexComparator) {
+    if (size < 2) {
+      return;
+    }
+    int[] order = getSortedOrder(indexComparator);
+
+    int[] sortedReceiptEpochDays = new int[receiptEpochDays.length];
+    long[] sortedAmounts = new long[amounts.length];
+    int[] sortedAccountIndexes = new int[accountIndexes.length];
+    String[] sortedTransactionIds = new String[transactionIds.length];
+    for (int i = 0; i < size; i++) {
+      int index = order[i];
+      sortedReceiptEpochDays[i] = receiptEpochDays[index];
+      sortedAmounts[i] = amounts[index];
+      sortedAccountIndexes[i] = accountIndexes[index];
+      sortedTransactionIds[i] = transactionIds[index];
+    }
+    receiptEpochDays = sortedReceiptEpochDays;
+    amounts = sortedAmounts;
+    accountIndexes = sortedAccountIndexes;
+    transactionIds = sortedTransactionIds;
+  }
+
+  /**
+   * Removes every transaction but keeps the table of accounts, so that account indexes stay the
+   * same from one batch to the next.
+   */
+  public void clear() {
+    Arrays.fill(transactionIds, 0, size, null);
+    size = 0;
+  }
+
+  /**
+   * Compares TransactionIDs the way they're numbered: IDs that are all digits by their value,
+   * so that 9 comes before 10, and ahead of any others, which are compared as text. Missing IDs
+   * come first.
+   */
+  public static int compareTransactionIds(String transactionId1, String transactionId2) {
+    if (transactionId1 == null || transactionId2 == null) {
+      return transactionId1 == null ? (transactionId2 == null ? 0 : -1) : 1;
+    }
+    boolean numeric1 = isDigits(transactionId1);
+    boolean numeric2 = isDigits(transactionId2);
+    if (numeric1 != numeric2) {
+      return numeric1 ? -1 : 1;
+    }
+    if (numeric1) {
+      int start1 = skipLeadingZeros(transactionId1);
+      int start2 = skipLeadingZeros(transactionId2);
+      int digits1 = transactionId1.length() - start1;
+      int digits2 = transactionId2.length() - start2;
+      if (digits1 != digits2) {
+        return Integer.compare(digits1, digits2);
+      }
+      for (int i = 0; i < digits1; i++) {
+        int result = transactionId1.charAt(start1 + i) - transactionId2.charAt(start2 + i);
+        if (result != 0) {
+          return result;
+        }
+      }
+    }
+    // Equal numbers written differently, such as 7 and 007, still need an order.
+    return transactionId1.compareTo(transactionId2);
+  }
+
+  private static boolean isDigits(String transactionId) {
+    if (transactionId.isEmpty()) {
+      return false;
+    }
+    for (int i = 0; i < transactionId.length(); i++) {
+      char c = transactionId.charAt(i);
+      if (c < '0' || c > '9') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int skipLeadingZeros(String digits) {
+    int start = 0;
+    while (start < digits.length() - 1 && digits.charAt(start) == '0') {
+      start++;
+    }
+    return start;
+  }
+
+  private void grow() {
+    int capacity = receiptEpochDays.length * 2;
+    receiptEpochDays = Arrays.copyOf(receiptEpochDays, capacity);
+    amounts = Arrays.copyOf(amounts, capacity);
+    accountIndexes = Arrays.copyOf(accountIndexes, capacity);
+    transactionIds = Arrays.copyOf(transactionIds, capacity);
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+    }
+  }
+
+  private void mergeSort(int[] order, int[] scratch, int start, int end,
+      IndexComparator indexComparator) {
+    if (end - start <= 16) {
+      // Insertion sort is quicker for short runs, and stable.
+      for (int i = start + 1; i < end; i++) {
+        int index = order[i];
+        int j = i;
+        while (j > start && indexComparator.compare(this, order[j - 1], index) > 0) {
+          order[j] = order[j - 1];
+          j--;
+        }
+        order[j] = index;
+      }
+      return;
+    }
+
+    int middle = (start + end) >>> 1;
+    mergeSort(order, scratch, start, middle, indexComparator);
+    mergeSort(order, scratch, middle, end, indexComparator);
+    if (indexComparator.compare(this, order[middle - 1], order[middle]) <= 0) {
+      // Already in order.
+      return;
+    }
+    System.arraycopy(order, start, scratch, start, end - start);
+    int left = start;
+    int right = middle;
+    for (int i = start; i < end; i++) {
+      if (right >= end ||
+          (left < middle && indexComparator.compare(this, scratch[left], scratch[right]) <= 0)) {
+        order[i] = scratch[left++];
+      } else {
+        order[i] = scratch[right++];
+      }
+    }
+  }
+}
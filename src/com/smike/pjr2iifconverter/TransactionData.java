@@ -1,30 +1,60 @@
 package com.smike.pjr2iifconverter;
 
+import java.util.Calendar;
 import java.util.Date;
 
 public class TransactionData {
-  private Date receiptDate;
+  // Days since 1970-01-01.
+  private int receiptEpochDay;
   private String transactionId;
-  private float amount;
+  private long amountCents;
   private String account;
 
+  public TransactionData(int receiptEpochDay, String transactionId, long amountCents,
+      String account) {
+    this.receiptEpochDay = receiptEpochDay;
+    this.transactionId = transactionId;
+    this.amountCents = amountCents;
+    this.account = account;
+  }
+
   public TransactionData(Date receiptDate, String transactionId, float amount, String account) {
-    this.receiptDate = receiptDate;
+    Calendar calendar = Calendar.getInstance();
+    calendar.setTime(receiptDate);
+    this.receiptEpochDay = PjrFieldParser.toEpochDay(calendar.get(Calendar.YEAR),
+                                                     calendar.get(Calendar.MONTH) + 1,
+                                                     calendar.get(Calendar.DATE));
     this.transactionId = transactionId;
-    this.amount = amount;
+    this.amountCents = PjrFieldParser.toCents(amount);
     this.account = account;
   }
 
+  public int getReceiptEpochDay() {
+    return receiptEpochDay;
+  }
+
+  /**
+   * Returns midnight local time on the receipt date.
+   */
   public Date getReceiptDate() {
-    return receiptDate;
+    int yearMonthDate = PjrFieldParser.toYearMonthDate(receiptEpochDay);
+    Calendar calendar = Calendar.getInstance();
+    calendar.clear();
+    // Month is 0-based
+    calendar.set(yearMonthDate / 10000, yearMonthDate / 100 % 100 - 1, yearMonthDate % 100);
+    return calendar.getTime();
   }
 
   public String getTransactionId() {
     return transactionId;
   }
 
+  public long getAmountCents() {
+    return amountCents;
+  }
+
   public float getAmount() {
-    return amount;
+    return amountCents / 100f;
   }
 
   public String getAccount() {
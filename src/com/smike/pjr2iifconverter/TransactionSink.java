@@ -0,0 +1,15 @@
+package com.smike.pjr2iifconverter;
+
+import java.io.Flushable;
+import java.io.IOException;
+
+/**
+ * Somewhere converted transactions are written, such as a single IIF or a series of IIF parts.
+ */
+public interface TransactionSink extends Flushable {
+  /**
+   * Writes a transaction. The memo may be null, and must not contain tabs or line breaks.
+   */
+  void write(int receiptEpochDay, String transactionId, long amountCents, String account,
+      String memo) throws IOException;
+}
@@ -0,0 +1,173 @@
+package com.smike.pjr2iifconverter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Collects transactions and hands them on in {@link RunFile#ORDER}, using about as much memory
+ * as its budget however many there are. Transactions are gathered in a {@link TransactionBatch}
+ * until they reach the budget, when the batch is sorted and spilled to a temporary run file.
+ * {@link #writeTo(TransactionSink)} then merges the runs, a limited number at a time.
+ *
+ * Memos aren't kept, so aggregated invoices can't be sorted this way. They come out of
+ * {@link TransactionAggregator} in date order already.
+ */
+public class TransactionSorter implements TransactionSink, Closeable {
+  private static Logger logger = Logger.getLogger(TransactionSorter.class.getName());
+
+  public static final long DEFAULT_MEMORY_BYTES = 64L * 1024 * 1024;
+
+  // The columns of a transaction in the batch, then the transaction ID's String and chars.
+  private static final int BYTES_PER_TRANSACTION = 24;
+  private static final int BYTES_PER_TRANSACTION_ID = 40;
+  // Each run being merged has a read buffer of its own.
+  private static final int MAX_MERGE_RUNS = 64;
+
+  private long memoryBytes;
+  private File tempDirectory;
+
+  private TransactionBatch transactionBatch = new TransactionBatch();
+  private long batchBytes;
+  private long transactionCount;
+  private List<File> runFiles = new ArrayList<File>();
+
+  public TransactionSorter() {
+    this(DEFAULT_MEMORY_BYTES);
+  }
+
+  /**
+   * @param memoryBytes roughly how much memory sorted transactions may take before they're
+   *     spilled
+   */
+  public TransactionSorter(long memoryBytes) {
+    this.memoryBytes = memoryBytes;
+  }
+
+  public File getTempDirectory() {
+    return tempDirectory;
+  }
+
+  /**
+   * Sets where runs are spilled, or null for the default temporary directory.
+   */
+  public void setTempDirectory(File tempDirectory) {
+    this.tempDirectory = tempDirectory;
+  }
+
+  public long size() {
+    return transactionCount;
+  }
+
+  /**
+   * Returns how many runs have been spilled so far.
+   */
+  public int getRunCount() {
+    return runFiles.size();
+  }
+
+  @Override
+  public void write(int receiptEpochDay, String transactionId, long amountCents, String account,
+      String memo) throws IOException {
+    if (memo != null) {
+      throw new IllegalArgumentException("Transactions with memos can't be sorted.");
+    }
+    transactionBatch.add(receiptEpochDay, transactionId, amountCents, account);
+    transactionCount++;
+    batchBytes += BYTES_PER_TRANSACTION;
+    if (transactionId != null) {
+      batchBytes += BYTES_PER_TRANSACTION_ID + 2 * transactionId.length();
+    }
+    if (batchBytes >= memoryBytes) {
+      spill();
+    }
+  }
+
+  @Override
+  public void flush() {}
+
+  /**
+   * Writes the transactions to the sink in order, and returns how many there were. Call this
+   * once, after the last transaction has been written to the sorter.
+   */
+  public long writeTo(TransactionSink transactionSink) throws IOException {
+    if (runFiles.isEmpty()) {
+      // Everything fit, so there's nothing to merge.
+      transactionBatch.sort(RunFile.ORDER);
+      for (int i = 0; i < transactionBatch.size(); i++) {
+        transactionSink.write(transactionBatch.getReceiptEpochDay(i),
+                              transactionBatch.getTransactionId(i),
+                              transactionBatch.getAmountCents(i), transactionBatch.getAccount(i),
+                              null);
+      }
+      transactionSink.flush();
+      return transactionBatch.size();
+    }
+
+    if (!transactionBatch.isEmpty()) {
+      spill();
+    }
+    // Merging too many runs at once would take a read buffer each, so they're merged in groups
+    // into longer runs until few enough are left.
+    while (runFiles.size() > MAX_MERGE_RUNS) {
+      List<File> group = new ArrayList<File>(runFiles.subList(0, MAX_MERGE_RUNS));
+      File runFile = newRunFile();
+      runFiles.add(runFile);
+      RunFile.Writer runWriter = new RunFile.Writer(new FileOutputStream(runFile));
+      try {
+        RunFile.merge(group, runWriter);
+      } finally {
+        runWriter.close();
+      }
+      runFiles.subList(0, MAX_MERGE_RUNS).clear();
+      deleteAll(group);
+    }
+    logger.info("Merging " + transactionCount + " transactions from " + runFiles.size() +
+        " sorted runs.");
+    return RunFile.merge(runFiles, transactionSink);
+  }
+
+  /**
+   * Deletes the spilled runs.
+   */
+  @Override
+  public void close() {
+    deleteAll(runFiles);
+    runFiles.clear();
+  }
+
+  private void spill() throws IOException {
+    transactionBatch.sort(RunFile.ORDER);
+    File runFile = newRunFile();
+    runFiles.add(runFile);
+    RunFile.Writer runWriter = new RunFile.Writer(new FileOutputStream(runFile));
+    try {
+      for (int i = 0; i < transactionBatch.size(); i++) {
+        runWriter.write(transactionBatch.getReceiptEpochDay(i),
+                        transactionBatch.getTransactionId(i),
+                        transactionBatch.getAmountCents(i), transactionBatch.getAccount(i), null);
+      }
+    } finally {
+      runWriter.close();
+    }
+    logger.fine("Spilled " + transactionBatch.size() + " transactions to " + runFile);
+    transactionBatch.clear();
+    batchBytes = 0;
+  }
+
+  private File newRunFile() throws IOException {
+    return File.createTempFile("pjr2iif-sort-", ".run", tempDirectory);
+  }
+
+  private static void deleteAll(List<File> files) {
+    for (File file : files) {
+      if (!file.delete() && file.exists()) {
+        logger.warning("Unable to delete " + file);
+      }
+    }
+  }
+}
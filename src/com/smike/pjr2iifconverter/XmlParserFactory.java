@@ -0,0 +1,185 @@
+package com.smike.pjr2iifconverter;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Logger;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLResolver;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.w3c.dom.Document;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Hands out XML parsers that read nothing but the document they're given. External DTDs aren't
+ * loaded, external entities aren't resolved and documents aren't validated, so a PJR that
+ * declares a DOCTYPE can't leave a conversion waiting on the network or pull in other files. A
+ * DOCTYPE's internal subset is still read, within the JDK's secure processing limits.
+ *
+ * Parsers are kept in a small pool and lent out for one document at a time, so they're reused
+ * whether documents are parsed by a few long-lived workers or by a new virtual thread for each
+ * server request. When the pool is empty a new parser is made, and parsers given back to a full
+ * pool are dropped.
+ */
+public class XmlParserFactory {
+  private static Logger logger = Logger.getLogger(XmlParserFactory.class.getName());
+
+  // Whatever still asks for an external entity gets an empty one rather than a connection.
+  private static final EntityResolver EMPTY_ENTITY_RESOLVER = new EntityResolver() {
+    @Override
+    public InputSource resolveEntity(String publicId, String systemId) {
+      return new InputSource(new StringReader(""));
+    }
+  };
+  private static final XMLResolver EMPTY_XML_RESOLVER = new XMLResolver() {
+    @Override
+    public Object resolveEntity(String publicId, String systemId, String baseUri,
+        String namespace) {
+      return new ByteArrayInputStream(new byte[0]);
+    }
+  };
+
+  // Enough for every worker of a conversion and a few more.
+  private static final int MAX_IDLE_PARSERS =
+      Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+  private static final DocumentBuilderFactory documentBuilderFactory =
+      newDocumentBuilderFactory();
+
+  private static final BlockingQueue<DocumentBuilder> idleDocumentBuilders =
+      new ArrayBlockingQueue<DocumentBuilder>(MAX_IDLE_PARSERS);
+  private static final BlockingQueue<XMLInputFactory> idleXmlInputFactories =
+      new ArrayBlockingQueue<XMLInputFactory>(MAX_IDLE_PARSERS);
+
+  private XmlParserFactory() {}
+
+  /**
+   * Lends out a document builder, which has to be given back with
+   * {@link #returnDocumentBuilder(DocumentBuilder)} once the document has been parsed.
+   */
+  public static DocumentBuilder borrowDocumentBuilder() throws ParserConfigurationException {
+    DocumentBuilder documentBuilder = idleDocumentBuilders.poll();
+    if (documentBuilder == null) {
+      // Factories aren't thread-safe, even just for creating builders.
+      synchronized (documentBuilderFactory) {
+        documentBuilder = documentBuilderFactory.newDocumentBuilder();
+      }
+      documentBuilder.setEntityResolver(EMPTY_ENTITY_RESOLVER);
+    }
+    return documentBuilder;
+  }
+
+  public static void returnDocumentBuilder(DocumentBuilder documentBuilder) {
+    // Resetting drops the resolver along with whatever the last document left behind.
+    documentBuilder.reset();
+    documentBuilder.setEntityResolver(EMPTY_ENTITY_RESOLVER);
+    idleDocumentBuilders.offer(documentBuilder);
+  }
+
+  /**
+   * Parses a whole document with a pooled document builder.
+   */
+  public static Document parse(InputStream inputStream, String systemId)
+      throws IOException, SAXException {
+    DocumentBuilder documentBuilder;
+    try {
+      documentBuilder = borrowDocumentBuilder();
+    } catch (ParserConfigurationException e) {
+      throw new SAXException(e);
+    }
+    try {
+      return documentBuilder.parse(inputStream, systemId);
+    } finally {
+      returnDocumentBuilder(documentBuilder);
+    }
+  }
+
+  /**
+   * Starts streaming through a document with a pooled StAX input factory, set up to see the same
+   * tag names and text as {@link #parse(InputStream, String)}. The factory is only needed to
+   * create the reader, so it goes straight back to the pool.
+   */
+  public static XMLStreamReader createXmlStreamReader(String systemId, InputStream inputStream)
+      throws XMLStreamException {
+    XMLInputFactory xmlInputFactory = idleXmlInputFactories.poll();
+    if (xmlInputFactory == null) {
+      xmlInputFactory = newXmlInputFactory();
+    }
+    try {
+      return xmlInputFactory.createXMLStreamReader(systemId, inputStream);
+    } finally {
+      idleXmlInputFactories.offer(xmlInputFactory);
+    }
+  }
+
+  private static DocumentBuilderFactory newDocumentBuilderFactory() {
+    DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+    documentBuilderFactory.setValidating(false);
+    documentBuilderFactory.setXIncludeAware(false);
+    setFeature(documentBuilderFactory, XMLConstants.FEATURE_SECURE_PROCESSING, true);
+    setFeature(documentBuilderFactory,
+               "http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+    setFeature(documentBuilderFactory, "http://xml.org/sax/features/external-general-entities",
+               false);
+    setFeature(documentBuilderFactory,
+               "http://xml.org/sax/features/external-parameter-entities", false);
+    setAttribute(documentBuilderFactory, XMLConstants.ACCESS_EXTERNAL_DTD, "");
+    setAttribute(documentBuilderFactory, XMLConstants.ACCESS_EXTERNAL_SCHEMA, "");
+    return documentBuilderFactory;
+  }
+
+  private static XMLInputFactory newXmlInputFactory() {
+    XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+    // Match DocumentBuilder's defaults so both engines see the same tag names and text.
+    xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+    xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    xmlInputFactory.setProperty(XMLInputFactory.IS_VALIDATING, false);
+    xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    xmlInputFactory.setXMLResolver(EMPTY_XML_RESOLVER);
+    // The internal subset is still read, as with DocumentBuilder, but not the external one.
+    setProperty(xmlInputFactory, "http://java.sun.com/xml/stream/properties/ignore-external-dtd",
+                true);
+    setProperty(xmlInputFactory, XMLConstants.ACCESS_EXTERNAL_DTD, "");
+    return xmlInputFactory;
+  }
+
+  // Settings that only some implementations have are skipped where they're missing. The
+  // resolvers still keep those from fetching anything.
+  private static void setFeature(DocumentBuilderFactory documentBuilderFactory, String name,
+      boolean value) {
+    try {
+      documentBuilderFactory.setFeature(name, value);
+    } catch (ParserConfigurationException e) {
+      logger.warning(documentBuilderFactory.getClass().getName() + " doesn't support " + name);
+    }
+  }
+
+  private static void setAttribute(DocumentBuilderFactory documentBuilderFactory, String name,
+      Object value) {
+    try {
+      documentBuilderFactory.setAttribute(name, value);
+    } catch (IllegalArgumentException e) {
+      logger.warning(documentBuilderFactory.getClass().getName() + " doesn't support " + name);
+    }
+  }
+
+  private static void setProperty(XMLInputFactory xmlInputFactory, String name, Object value) {
+    try {
+      xmlInputFactory.setProperty(name, value);
+    } catch (IllegalArgumentException e) {
+      logger.warning(xmlInputFactory.getClass().getName() + " doesn't support " + name);
+    }
+  }
+}